@@ -1,42 +1,91 @@
 package ru.onetwo33.client;
 
+import ru.onetwo33.common.Checksums;
+import ru.onetwo33.common.Chunker;
+import ru.onetwo33.common.Compression;
+import ru.onetwo33.common.Delta;
+import ru.onetwo33.common.PartFile;
+import ru.onetwo33.common.PipelineProtocol;
+import ru.onetwo33.common.TreeStream;
+
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Swing client - File Storage
- * Client command: upload filename | download filename
+ * Client command: upload filename [filename ...] | download filename [filename ...]
+ * A single file goes to the transfer manager and shows up in the transfer table,
+ * several filenames are sent pipelined over the same connection
+ * Big files: pupload filename | pdownload filename - parallel ranges over several connections
+ * Flaky links: rupload filename | rdownload filename - continue from where the last attempt stopped
+ * Backups: dupload filename | ddownload filename - deduplicated chunk store, only new chunks are sent
+ * Edited files: delta filename - upload only the differences to the server copy
+ * Slow links: zupload filename [fast|best] | zdownload filename [fast|best] - compressed on the wire
+ * Directories: tupload dirname | tdownload dirname - the whole tree as one stream, small files packed together
+ * Sync: sync - two-way sync of the client folder with the server, only what changed on either side moves
+ * sync auto | sync off - sync after every local change and every sync.interval seconds (30)
  */
 
 public class Client extends JFrame {
 
+    private static final long serialVersionUID = 1L;
+
     private final Socket socket;
     private final DataOutputStream out;
     private final DataInputStream in;
 
+    private final ParallelTransfer parallelTransfer;
+    private final TransferManager transferManager;
+    private final TransferPanel transferPanel;
+    private final SyncEngine syncEngine;
+    private final ExecutorService commands = Executors.newSingleThreadExecutor();
+
+    private int nextRequestId = 1;
+
     public Client() throws IOException {
         // init
         socket = new Socket("localhost", 6789);
-        out = new DataOutputStream(socket.getOutputStream());
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), PipelineProtocol.CHUNK_SIZE));
         in = new DataInputStream(socket.getInputStream());
+        parallelTransfer = new ParallelTransfer("localhost", 6789, 4);
+        transferManager = new TransferManager("localhost", 6789, Integer.getInteger("client.transfers", 3));
+        syncEngine = new SyncEngine("localhost", 6789, Path.of("client"));
+        syncEngine.start();
 
         // create form
-        setSize(300, 300);
-        JPanel panel = new JPanel(new GridLayout(2, 1));
+        setSize(600, 300);
+        transferPanel = new TransferPanel(transferManager);
 
         JButton btnSend = new JButton("SEND");
         JTextField textField = new JTextField();
 
         btnSend.addActionListener(a -> {
             String[] cmd = textField.getText().split(" ");
-            if ("upload".equals(cmd[0])) {
-                sendFile(cmd[1]);
-            } else if ("download".equals(cmd[0])) {
-                getFile(cmd[1]);
+            if (cmd.length == 2 && "upload".equals(cmd[0])) {
+                transferManager.upload(cmd[1]);
+                transferPanel.transferAdded();
+            } else if (cmd.length == 2 && "download".equals(cmd[0])) {
+                transferManager.download(cmd[1]);
+                transferPanel.transferAdded();
+            } else {
+                commands.execute(() -> runCommand(cmd));
             }
         });
 
@@ -44,72 +93,375 @@ public class Client extends JFrame {
             @Override
             public void windowClosing(WindowEvent e) {
                 super.windowClosing(e);
-                sendMessage("exit");
+                transferManager.shutdown();
+                syncEngine.stop();
+                // exit queues behind the running command, the socket is closed if that one takes too long
+                commands.execute(() -> sendMessage("exit"));
+                commands.shutdown();
+                try {
+                    commands.awaitTermination(2, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                try {
+                    socket.close();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
             }
         });
 
-        panel.add(textField);
-        panel.add(btnSend);
+        JPanel commandPanel = new JPanel(new BorderLayout());
+        commandPanel.add(textField, BorderLayout.CENTER);
+        commandPanel.add(btnSend, BorderLayout.EAST);
 
-        add(panel);
+        add(commandPanel, BorderLayout.NORTH);
+        add(transferPanel, BorderLayout.CENTER);
 
         setDefaultCloseOperation(3);
         setVisible(true);
     }
 
-    private void getFile(String filename) {
+    /**
+     * Commands over the shared connection, one at a time on the command thread
+     */
+    private void runCommand(String[] cmd) {
+        List<String> names = Arrays.asList(cmd).subList(1, cmd.length);
+        if (names.size() > 1 && "upload".equals(cmd[0])) {
+            transferPipelined(Collections.emptyList(), names);
+        } else if (names.size() > 1 && "download".equals(cmd[0])) {
+            transferPipelined(names, Collections.emptyList());
+        } else if ("zupload".equals(cmd[0])) {
+            compressedSendFile(cmd[1], Compression.Codec.of(cmd.length > 2 ? cmd[2] : "fast"));
+        } else if ("zdownload".equals(cmd[0])) {
+            compressedGetFile(cmd[1], Compression.Codec.of(cmd.length > 2 ? cmd[2] : "fast"));
+        } else if ("delta".equals(cmd[0])) {
+            deltaSendFile(cmd[1]);
+        } else if ("dupload".equals(cmd[0])) {
+            dedupSendFile(cmd[1]);
+        } else if ("ddownload".equals(cmd[0])) {
+            dedupGetFile(cmd[1]);
+        } else if ("rupload".equals(cmd[0])) {
+            resumeSendFile(cmd[1]);
+        } else if ("rdownload".equals(cmd[0])) {
+            resumeGetFile(cmd[1]);
+        } else if ("tupload".equals(cmd[0])) {
+            sendTree(cmd[1]);
+        } else if ("tdownload".equals(cmd[0])) {
+            getTree(cmd[1]);
+        } else if ("pupload".equals(cmd[0])) {
+            sendFileParallel(cmd[1]);
+        } else if ("pdownload".equals(cmd[0])) {
+            getFileParallel(cmd[1]);
+        } else if ("sync".equals(cmd[0]) && cmd.length > 1) {
+            syncEngine.setAuto("auto".equals(cmd[1]), Integer.getInteger("sync.interval", 30));
+        } else if ("sync".equals(cmd[0])) {
+            syncEngine.sync();
+        }
+    }
+
+    private void compressedSendFile(String filename, Compression.Codec requested) {
+        try {
+            File file = new File("client/" + filename);
+            if (!file.exists()) {
+                throw new FileNotFoundException();
+            }
+            try (BufferedInputStream fis = new BufferedInputStream(new FileInputStream(file), Compression.BLOCK_SIZE)) {
+                byte[] head = new byte[16];
+                fis.mark(head.length);
+                int headLength = fis.readNBytes(head, 0, head.length);
+                fis.reset();
+                Compression.Codec codec = Compression.choose(requested, head, headLength);
+
+                out.writeUTF("zupload");
+                out.writeUTF(filename);
+                out.writeLong(file.length());
+                out.writeUTF(codec.name());
+                OutputStream target = codec == Compression.Codec.NONE ? out : Compression.compress(out, codec);
+                fis.transferTo(target);
+                if (target != out) {
+                    target.close();
+                }
+                out.flush();
+            }
+
+            String status = in.readUTF();
+            System.out.println("Sending status: " + status);
+        } catch (FileNotFoundException e) {
+            System.err.println("File not found - /client/" + filename);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void compressedGetFile(String filename, Compression.Codec codec) {
         try {
-            out.writeUTF("download");
+            out.writeUTF("zdownload");
             out.writeUTF(filename);
+            out.writeUTF(codec.name());
+            out.flush();
             String status = in.readUTF();
             if ("File not found".equals(status))
                 throw new FileNotFoundException();
 
+            long size = in.readLong();
+            boolean compressed = Compression.Codec.of(in.readUTF()) != Compression.Codec.NONE;
+            try (FileOutputStream fos = new FileOutputStream("client/" + filename);
+                 InputStream source = compressed ? Compression.decompress(in) : null) {
+                InputStream from = compressed ? source : in;
+                byte[] buffer = new byte[8 * 1024];
+                long remaining = size;
+                while (remaining > 0) {
+                    int read = from.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read < 0) {
+                        throw new EOFException();
+                    }
+                    fos.write(buffer, 0, read);
+                    remaining -= read;
+                }
+            }
+            System.out.println("Download complete");
+        } catch (FileNotFoundException e) {
+            System.err.println("Server: file not found " + filename);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Server sends block signatures of its copy, only unmatched bytes go back
+     */
+    private void deltaSendFile(String filename) {
+        try {
             File file = new File("client/" + filename);
             if (!file.exists()) {
-                file.createNewFile();
+                throw new FileNotFoundException();
             }
+            out.writeUTF("delta-upload");
+            out.writeUTF(filename);
+            out.flush();
+            Delta.writeDelta(file.toPath(), in, out);
+            out.writeUTF(Checksums.sha256(file.toPath()));
+            out.flush();
+
+            String status = in.readUTF();
+            System.out.println("Sending status: " + status);
+        } catch (FileNotFoundException e) {
+            System.err.println("File not found - /client/" + filename);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Sends the chunk list first, then only the chunks the server asks for
+     */
+    private void dedupSendFile(String filename) {
+        try {
+            File file = new File("client/" + filename);
+            if (!file.exists()) {
+                throw new FileNotFoundException();
+            }
+            List<Chunker.Chunk> chunks = Chunker.split(file.toPath());
+            out.writeUTF("dedup-upload");
+            out.writeUTF(filename);
+            out.writeLong(file.length());
+            out.writeInt(chunks.size());
+            for (Chunker.Chunk chunk : chunks) {
+                out.writeUTF(chunk.getId());
+            }
+            out.flush();
+
+            int missing = in.readInt();
+            int[] indexes = new int[missing];
+            for (int i = 0; i < missing; i++) {
+                indexes[i] = in.readInt();
+            }
+            byte[] buffer = new byte[Chunker.MAX_SIZE];
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                for (int index : indexes) {
+                    Chunker.Chunk chunk = chunks.get(index);
+                    raf.seek(chunk.getOffset());
+                    raf.readFully(buffer, 0, chunk.getLength());
+                    out.writeInt(chunk.getLength());
+                    out.write(buffer, 0, chunk.getLength());
+                }
+            }
+            out.flush();
+
+            String status = in.readUTF();
+            System.out.printf("Sending status: %s (%d of %d chunks sent)%n", status, missing, chunks.size());
+        } catch (FileNotFoundException e) {
+            System.err.println("File not found - /client/" + filename);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void dedupGetFile(String filename) {
+        try {
+            out.writeUTF("dedup-download");
+            out.writeUTF(filename);
+            out.flush();
+            String status = in.readUTF();
+            if ("File not found".equals(status))
+                throw new FileNotFoundException();
 
-            FileOutputStream fos = new FileOutputStream(file);
             long size = in.readLong();
-            byte[] buffer = new byte[8 * 1024];
-            for (int i = 0; i < (size + (8 * 1024 - 1)) / (8 * 1024); i++) {
-                int read = in.read(buffer);
-                fos.write(buffer, 0, read);
+            try (FileOutputStream fos = new FileOutputStream("client/" + filename)) {
+                byte[] buffer = new byte[8 * 1024];
+                long remaining = size;
+                while (remaining > 0) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read < 0) {
+                        throw new EOFException();
+                    }
+                    fos.write(buffer, 0, read);
+                    remaining -= read;
+                }
             }
-            fos.close();
             System.out.println("Download complete");
         } catch (FileNotFoundException e) {
             System.err.println("Server: file not found " + filename);
-        } catch (Exception e) {
+        } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    private void sendFile(String filename) {
+    /**
+     * Server answers with the offset it already has, only the rest is sent
+     */
+    private void resumeSendFile(String filename) {
         try {
             File file = new File("client/" + filename);
             if (!file.exists()) {
                 throw new FileNotFoundException();
             }
+            out.writeUTF("resume-upload");
+            out.writeUTF(filename);
+            out.writeLong(file.length());
+            out.flush();
+            long offset = in.readLong();
+            long checksum = in.readLong();
+            if (offset > file.length() || Checksums.crc32(file.toPath(), offset) != checksum) {
+                offset = 0; // the server holds the start of another version
+            }
+            out.writeLong(offset);
+            out.flush();
+            if (offset > 0) {
+                System.out.println("Resuming upload from " + offset);
+            }
 
-            long fileLength = file.length();
-            FileInputStream fis = new FileInputStream(file);
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                channel.position(offset);
+                byte[] buffer = new byte[8 * 1024];
+                ByteBuffer chunk = ByteBuffer.wrap(buffer);
+                int read;
+                while ((read = channel.read(chunk.clear())) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            }
+            out.flush();
+
+            String status = in.readUTF();
+            System.out.println("Sending status: " + status);
+        } catch (FileNotFoundException e) {
+            System.err.println("File not found - /client/" + filename);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-            out.writeUTF("upload");
+    /**
+     * Received bytes are kept in client/filename.part, the next attempt asks only for the rest
+     */
+    private void resumeGetFile(String filename) {
+        try (PartFile part = PartFile.open(Path.of("client", filename))) {
+            out.writeUTF("resume-download");
             out.writeUTF(filename);
-            out.writeLong(fileLength);
+            out.writeLong(part.offset());
+            out.writeLong(part.checksum());
+            out.flush();
+            String status = in.readUTF();
+            if ("File not found".equals(status))
+                throw new FileNotFoundException();
+            long size = in.readLong();
+            if (in.readLong() != part.offset()) {
+                part.restart(); // the server's file changed since
+            }
+            if (part.offset() > 0) {
+                System.out.println("Resuming download from " + part.offset());
+            }
 
-            int read = 0;
             byte[] buffer = new byte[8 * 1024];
-            while ((read = fis.read(buffer)) != -1) {
-                out.write(buffer, 0, read);
+            long remaining = size - part.offset();
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new EOFException();
+                }
+                part.write(buffer, 0, read);
+                remaining -= read;
             }
+            part.commit();
+            System.out.println("Download complete");
+        } catch (FileNotFoundException e) {
+            System.err.println("Server: file not found " + filename);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
+    private void sendTree(String dirname) {
+        try {
+            Path directory = Path.of("client", dirname);
+            if (!Files.isDirectory(directory)) {
+                throw new FileNotFoundException();
+            }
+            out.writeUTF("tree-upload");
+            out.writeUTF(dirname);
             out.flush();
-
             String status = in.readUTF();
-            System.out.println("Sending status: " + status);
+            if (!"READY".equals(status)) {
+                System.err.println("Server: " + status);
+                return;
+            }
+            long sent = TreeStream.write(directory, out);
+            status = in.readUTF();
+            if ("OK".equals(status)) {
+                System.out.printf("Sending status: OK, %d of %d files%n", in.readLong(), sent);
+            } else {
+                System.err.println("Server: " + status);
+            }
+        } catch (FileNotFoundException e) {
+            System.err.println("Directory not found - /client/" + dirname);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void getTree(String dirname) {
+        try {
+            Path directory = TreeStream.resolve(Path.of("client"), dirname);
+            out.writeUTF("tree-download");
+            out.writeUTF(dirname);
+            out.flush();
+            if (!"Directory found".equals(in.readUTF())) {
+                throw new FileNotFoundException();
+            }
+            long files = TreeStream.read(in, directory);
+            System.out.printf("Download complete, %d files%n", files);
+        } catch (FileNotFoundException e) {
+            System.err.println("Server: directory not found " + dirname);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void sendFileParallel(String filename) {
+        try {
+            parallelTransfer.upload(filename);
+            System.out.println("Sending status: OK");
         } catch (FileNotFoundException e) {
             System.err.println("File not found - /client/" + filename);
         } catch (IOException e) {
@@ -117,6 +469,117 @@ public class Client extends JFrame {
         }
     }
 
+    private void getFileParallel(String filename) {
+        try {
+            parallelTransfer.download(filename);
+            System.out.println("Download complete");
+        } catch (FileNotFoundException e) {
+            System.err.println("Server: file not found " + filename);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * All requests are written without waiting for answers, a reader thread
+     * demultiplexes the (possibly interleaved) responses by request id
+     */
+    private void transferPipelined(List<String> downloads, List<String> uploads) {
+        Map<Integer, String> names = new HashMap<>();
+        Map<Integer, FileOutputStream> files = new HashMap<>();
+        Thread reader = new Thread(() -> readPipelined(names, files));
+        try {
+            out.writeUTF(PipelineProtocol.COMMAND);
+            synchronized (names) {
+                for (String filename : downloads) {
+                    names.put(nextRequestId, filename);
+                    out.writeByte(PipelineProtocol.DOWNLOAD);
+                    out.writeInt(nextRequestId++);
+                    out.writeUTF(filename);
+                }
+            }
+            out.flush();
+            reader.start();
+
+            byte[] buffer = new byte[PipelineProtocol.CHUNK_SIZE];
+            for (String filename : uploads) {
+                File file = new File("client/" + filename);
+                if (!file.exists()) {
+                    System.err.println("File not found - /client/" + filename);
+                    continue;
+                }
+                int id = nextRequestId++;
+                synchronized (names) {
+                    names.put(id, filename);
+                }
+                out.writeByte(PipelineProtocol.UPLOAD);
+                out.writeInt(id);
+                out.writeUTF(filename);
+                out.writeLong(file.length());
+                try (FileInputStream fis = new FileInputStream(file)) {
+                    int read;
+                    while ((read = fis.read(buffer)) != -1) {
+                        out.writeByte(PipelineProtocol.DATA);
+                        out.writeInt(id);
+                        out.writeInt(read);
+                        out.write(buffer, 0, read);
+                    }
+                }
+            }
+            out.writeByte(PipelineProtocol.END);
+            out.flush();
+            reader.join();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void readPipelined(Map<Integer, String> names, Map<Integer, FileOutputStream> files) {
+        try {
+            byte[] buffer = new byte[PipelineProtocol.CHUNK_SIZE];
+            while (true) {
+                int id = in.readInt();
+                byte type = in.readByte();
+                String filename;
+                synchronized (names) {
+                    filename = names.get(id);
+                }
+                if (type == PipelineProtocol.END) {
+                    break;
+                } else if (type == PipelineProtocol.FOUND) {
+                    in.readLong();
+                    files.put(id, new FileOutputStream("client/" + filename));
+                } else if (type == PipelineProtocol.DATA) {
+                    int length = in.readInt();
+                    in.readFully(buffer, 0, length);
+                    files.get(id).write(buffer, 0, length);
+                } else if (type == PipelineProtocol.DONE) {
+                    FileOutputStream fos = files.remove(id);
+                    if (fos != null) {
+                        fos.close();
+                        System.out.println("Download complete: " + filename);
+                    } else {
+                        System.out.println("Upload complete: " + filename);
+                    }
+                } else if (type == PipelineProtocol.ERROR) {
+                    System.err.println("Server: " + in.readUTF() + " " + filename);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (FileOutputStream fos : files.values()) {
+                try {
+                    fos.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
     /**
      * message sending
      * @param message String
@@ -124,6 +587,7 @@ public class Client extends JFrame {
     private void sendMessage(String message) {
         try {
             out.writeUTF(message);
+            out.flush();
             String command = in.readUTF();
 //            if ("done".equalsIgnoreCase(command)) {
 //                System.out.println(command);
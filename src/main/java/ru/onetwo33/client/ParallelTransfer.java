@@ -0,0 +1,208 @@
+package ru.onetwo33.client;
+
+import ru.onetwo33.common.Checksums;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Splits a file into ranges and moves each range over its own connection.
+ * Both sides write ranges into a pre-allocated .range file and move it in place
+ * only after the SHA-256 of the whole file matches. The .part name belongs to resumable transfers.
+ */
+public class ParallelTransfer {
+
+    private static final long MIN_RANGE_SIZE = 4 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final String host;
+    private final int port;
+    private final int connections;
+
+    public ParallelTransfer(String host, int port, int connections) {
+        this.host = host;
+        this.port = port;
+        this.connections = connections;
+    }
+
+    public void upload(String filename) throws IOException {
+        Path path = Path.of("client", filename);
+        if (!Files.isRegularFile(path)) {
+            throw new FileNotFoundException(path.toString());
+        }
+        long size = Files.size(path);
+        runRanges(size, (offset, length) -> uploadRange(path, filename, size, offset, length));
+
+        try (Connection control = new Connection()) {
+            control.out.writeUTF("range-commit");
+            control.out.writeUTF(filename);
+            control.out.writeUTF(Checksums.sha256(path));
+            control.out.flush();
+            String status = control.in.readUTF();
+            if (!"OK".equals(status)) {
+                throw new IOException("Upload verification failed: " + filename);
+            }
+        }
+    }
+
+    public void download(String filename) throws IOException {
+        long size;
+        String checksum;
+        try (Connection control = new Connection()) {
+            control.out.writeUTF("stat");
+            control.out.writeUTF(filename);
+            control.out.flush();
+            if (!"File found".equals(control.in.readUTF())) {
+                throw new FileNotFoundException(filename);
+            }
+            size = control.in.readLong();
+            checksum = control.in.readUTF();
+        }
+
+        Path part = Path.of("client", filename + ".range");
+        try (FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            if (channel.size() > size) {
+                channel.truncate(size); // left over from a bigger download
+            } else if (channel.size() < size) {
+                channel.write(ByteBuffer.allocate(1), size - 1); // pre-allocate
+            }
+        }
+        runRanges(size, (offset, length) -> downloadRange(part, filename, offset, length));
+
+        if (!Checksums.sha256(part).equals(checksum)) {
+            Files.deleteIfExists(part);
+            throw new IOException("Download verification failed: " + filename);
+        }
+        Files.move(part, Path.of("client", filename), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void uploadRange(Path path, String filename, long size, long offset, long length) throws IOException {
+        try (Connection connection = new Connection();
+             FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            connection.out.writeUTF("range-upload");
+            connection.out.writeUTF(filename);
+            connection.out.writeLong(size);
+            connection.out.writeLong(offset);
+            connection.out.writeLong(length);
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            long position = offset;
+            long end = offset + length;
+            while (position < end) {
+                buffer.clear().limit((int) Math.min(BUFFER_SIZE, end - position));
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new EOFException(filename);
+                }
+                connection.out.write(buffer.array(), 0, read);
+                position += read;
+            }
+            connection.out.flush();
+            if (!"OK".equals(connection.in.readUTF())) {
+                throw new IOException("Range upload failed: " + filename + " @" + offset);
+            }
+        }
+    }
+
+    private void downloadRange(Path part, String filename, long offset, long length) throws IOException {
+        try (Connection connection = new Connection();
+             FileChannel channel = FileChannel.open(part, StandardOpenOption.WRITE)) {
+            connection.out.writeUTF("range-download");
+            connection.out.writeUTF(filename);
+            connection.out.writeLong(offset);
+            connection.out.writeLong(length);
+            connection.out.flush();
+            if (!"File found".equals(connection.in.readUTF())) {
+                throw new FileNotFoundException(filename);
+            }
+            long remaining = connection.in.readLong();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long position = offset;
+            while (remaining > 0) {
+                int read = connection.in.read(buffer, 0, (int) Math.min(BUFFER_SIZE, remaining));
+                if (read < 0) {
+                    throw new EOFException(filename);
+                }
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+                while (chunk.hasRemaining()) {
+                    position += channel.write(chunk, position);
+                }
+                remaining -= read;
+            }
+        }
+    }
+
+    private void runRanges(long size, RangeTask task) throws IOException {
+        int count = (int) Math.max(1, Math.min(connections, size / MIN_RANGE_SIZE));
+        long rangeSize = (size + count - 1) / count;
+        ExecutorService executor = Executors.newFixedThreadPool(count);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (long offset = 0; offset < size || futures.isEmpty(); offset += rangeSize) {
+                long start = offset;
+                long length = Math.min(rangeSize, size - offset);
+                futures.add(executor.submit(() -> {
+                    task.transfer(start, length);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private interface RangeTask {
+        void transfer(long offset, long length) throws IOException;
+    }
+
+    /**
+     * One protocol connection, says exit before closing
+     */
+    private class Connection implements AutoCloseable {
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final DataInputStream in;
+
+        Connection() throws IOException {
+            socket = new Socket(host, port);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                out.writeUTF("exit");
+                out.flush();
+                in.readUTF();
+            } finally {
+                socket.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,835 @@
+package ru.onetwo33.client;
+
+import ru.onetwo33.common.Checksums;
+import ru.onetwo33.common.TreeStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Two-way sync of the client folder with the server root.
+ * <p>
+ * The state file (client/.sync/state) holds the server cursor and, per path, the version both sides
+ * agreed on last time: local size, mtime and sha256 and the server's size and mtime. A sync asks the server
+ * only for the records changed since the cursor and looks only at the local paths the WatchService reported
+ * (everything on the first sync and after an overflow); a file is hashed only when its size or mtime moved.
+ * Changed files go up in one TreeStream and come down in another, deletes go in one batch.
+ * <p>
+ * Changed on one side: the change is copied over. Changed on both: same content is fine, otherwise the
+ * local file is renamed to "name (conflict date).ext" and uploaded as well, and the server version takes
+ * the name. Deleted on one side and edited on the other: the edit wins. Hidden entries are not synced.
+ */
+public class SyncEngine {
+
+    private static final int STATE_VERSION = 1;
+    private static final long QUIET_MS = 1000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * What both sides had after the last sync
+     */
+    private static class Entry {
+        private final boolean directory;
+        private long size;
+        private long modified;
+        private final String hash;
+        private final long remoteSize;
+        private final long remoteModified;
+
+        private Entry(boolean directory, long size, long modified, String hash, long remoteSize, long remoteModified) {
+            this.directory = directory;
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+            this.remoteSize = remoteSize;
+            this.remoteModified = remoteModified;
+        }
+    }
+
+    /**
+     * A path as it is on disk now, the hash only for files
+     */
+    private static class Local {
+        private final boolean directory;
+        private final long size;
+        private final long modified;
+        private String hash = "";
+
+        private Local(boolean directory, long size, long modified) {
+            this.directory = directory;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    /**
+     * A server record from the change list
+     */
+    private static class Remote {
+        private static final Remote DELETED = new Remote(true, false, 0, 0, "");
+
+        private final boolean deleted;
+        private final boolean directory;
+        private final long size;
+        private final long modified;
+        private final String checksum;
+
+        private Remote(boolean deleted, boolean directory, long size, long modified, String checksum) {
+            this.deleted = deleted;
+            this.directory = directory;
+            this.size = size;
+            this.modified = modified;
+            this.checksum = checksum;
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final Path root;
+    private final Path stateFile;
+
+    private final NavigableMap<String, Entry> base = new TreeMap<>();
+    private long cursor;
+    private boolean loaded;
+
+    private final Object events = new Object();
+    private final Set<String> dirty = new HashSet<>(); // guarded by events
+    private boolean rescan = true; // guarded by events
+    private long lastEvent; // guarded by events
+
+    private volatile WatchService watcher;
+    private final Map<WatchKey, Path> keys = new HashMap<>();
+    private volatile boolean auto;
+    private Thread autoThread;
+
+    public SyncEngine(String host, int port, Path root) {
+        this.host = host;
+        this.port = port;
+        this.root = root.toAbsolutePath().normalize();
+        this.stateFile = this.root.resolve(".sync").resolve("state");
+    }
+
+    /**
+     * Starts watching the folder, from then on a sync only looks at what the watcher reported
+     */
+    public synchronized void start() {
+        if (watcher != null) {
+            return;
+        }
+        try {
+            Files.createDirectories(root);
+            watcher = root.getFileSystem().newWatchService();
+            register(root);
+        } catch (IOException e) {
+            e.printStackTrace(); // every sync scans the whole folder then
+            return;
+        }
+        Thread thread = new Thread(this::watch, "sync-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Auto mode syncs shortly after local changes settle and every interval seconds for the server's
+     */
+    public synchronized void setAuto(boolean enabled, int intervalSeconds) {
+        auto = enabled;
+        if (enabled && autoThread == null) {
+            start();
+            autoThread = new Thread(() -> autoSync(intervalSeconds * 1000L), "sync-auto");
+            autoThread.setDaemon(true);
+            autoThread.start();
+        }
+        synchronized (events) {
+            events.notifyAll();
+        }
+        System.out.println("Auto sync " + (enabled ? "on" : "off"));
+    }
+
+    public void stop() {
+        auto = false;
+        synchronized (events) {
+            events.notifyAll();
+        }
+        WatchService current = watcher;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * One sync over a connection of its own
+     */
+    public synchronized void sync() {
+        boolean full;
+        Set<String> paths;
+        synchronized (events) {
+            full = rescan || watcher == null;
+            paths = new HashSet<>(dirty);
+            rescan = false;
+            dirty.clear();
+        }
+        try (Socket socket = new Socket(host, port)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+            Files.createDirectories(root);
+            load();
+            boolean complete = round(out, in, full, paths);
+            save();
+            out.writeUTF("exit");
+            out.flush();
+            in.readUTF();
+            if (!complete) {
+                markRescan();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            markRescan();
+        }
+    }
+
+    /**
+     * False when something did not go through, the next sync looks at everything again then
+     */
+    private boolean round(DataOutputStream out, DataInputStream in, boolean full, Set<String> paths) throws IOException {
+        long[] next = new long[1];
+        Set<String> unknown = new TreeSet<>();
+        NavigableMap<String, Remote> remote = fetchChanges(out, in, next, unknown);
+        Set<String> candidates = new TreeSet<>(paths);
+        candidates.addAll(remote.keySet());
+        for (String path : unknown) {
+            base.remove(path); // looked at as new here, so it goes up again if it is still here
+            candidates.add(path);
+        }
+        NavigableMap<String, Local> local = scan(full, candidates);
+
+        List<String> push = new ArrayList<>();
+        Map<String, Local> pushed = new HashMap<>();
+        NavigableMap<String, Remote> pull = new TreeMap<>();
+        NavigableSet<String> deleteRemote = new TreeSet<>();
+        NavigableSet<String> deleteLocal = new TreeSet<>();
+        int conflicts = 0;
+
+        NavigableSet<String> all = new TreeSet<>(remote.keySet());
+        all.addAll(local.keySet());
+        for (String path : all) {
+            Entry entry = base.get(path);
+            boolean localChanged = local.containsKey(path);
+            Local l = local.get(path);
+            Remote r = remote.get(path);
+            boolean remoteChanged = r != null && changed(entry, r);
+
+            if (localChanged && !remoteChanged) {
+                if (l != null) {
+                    push.add(path);
+                    pushed.put(path, l);
+                } else if (entry != null) {
+                    deleteRemote.add(path);
+                }
+            } else if (!localChanged && remoteChanged) {
+                if (r.deleted) {
+                    if (entry != null) {
+                        deleteLocal.add(path);
+                    }
+                } else if (entry != null && entry.directory != r.directory) {
+                    conflicts += conflict(path, push, pushed);
+                    take(path, r, pull);
+                } else {
+                    take(path, r, pull);
+                }
+            } else if (localChanged) {
+                if (l == null && r.deleted) {
+                    base.remove(path);
+                } else if (l == null) {
+                    take(path, r, pull); // edited there, deleted here: the edit wins
+                } else if (r.deleted) {
+                    base.remove(path); // edited here, deleted there
+                    push.add(path);
+                    pushed.put(path, l);
+                } else if (l.directory && r.directory) {
+                    base.put(path, new Entry(true, 0, l.modified, "", 0, r.modified));
+                } else if (!l.directory && !r.directory && l.hash.equals(checksum(out, in, path, r))) {
+                    base.put(path, new Entry(false, l.size, l.modified, l.hash, r.size, r.modified));
+                } else {
+                    conflicts += conflict(path, push, pushed);
+                    take(path, r, pull);
+                }
+            }
+        }
+
+        boolean complete = true;
+        int deletedRemote = deleteRemote(out, in, deleteRemote);
+        complete &= push(out, in, push, pushed);
+        complete &= pull(out, in, pull);
+        int deletedLocal = deleteLocal(deleteLocal);
+        if (complete) {
+            cursor = next[0];
+        }
+        System.out.printf("Sync: %d up, %d down, %d deleted here, %d deleted on server, %d conflicts%n",
+                pushed.size(), pull.size(), deletedLocal, deletedRemote, conflicts);
+        return complete;
+    }
+
+    /**
+     * Server records changed since the cursor, newest version per path; a deleted directory
+     * marks everything below it that we know of as deleted. A snapshot is not a list of deletes:
+     * the server sends one when it lost records it may have told us about (meta wiped, a crash
+     * before the group commit), so the known paths it leaves out go to unknown and are never deleted here.
+     */
+    private NavigableMap<String, Remote> fetchChanges(DataOutputStream out, DataInputStream in, long[] next,
+                                                      Set<String> unknown) throws IOException {
+        NavigableMap<String, Remote> changes = new TreeMap<>();
+        boolean snapshotSeen = false;
+        long since = cursor;
+        boolean more = true;
+        while (more) {
+            out.writeUTF("changes");
+            out.writeLong(since);
+            out.flush();
+            since = in.readLong();
+            boolean snapshot = in.readBoolean();
+            more = in.readBoolean();
+            int count = in.readInt();
+            snapshotSeen |= snapshot;
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                if (in.readBoolean()) {
+                    for (String below : new ArrayList<>(subtree(base, path).keySet())) {
+                        changes.put(below, Remote.DELETED);
+                    }
+                    for (String below : new ArrayList<>(subtree(changes, path).keySet())) {
+                        changes.put(below, Remote.DELETED);
+                    }
+                    changes.put(path, Remote.DELETED);
+                } else {
+                    changes.put(path, new Remote(false, in.readBoolean(), in.readLong(), in.readLong(), in.readUTF()));
+                }
+            }
+        }
+        changes.keySet().removeIf(path -> path.isEmpty() || hidden(path));
+        if (snapshotSeen) {
+            unknown.addAll(base.keySet());
+            unknown.removeAll(changes.keySet());
+        }
+        next[0] = since;
+        return changes;
+    }
+
+    /**
+     * Local paths that differ from the last sync, null for deleted ones. Without a full scan only the
+     * given paths, what we know below them and new directories among them are looked at.
+     */
+    private NavigableMap<String, Local> scan(boolean full, Set<String> paths) throws IOException {
+        NavigableSet<String> candidates = new TreeSet<>();
+        if (full) {
+            candidates.addAll(base.keySet());
+            walk(root, candidates);
+        }
+        for (String path : paths) {
+            candidates.add(path);
+            candidates.addAll(subtree(base, path).keySet());
+            Path file = root.resolve(path);
+            if (!base.containsKey(path) && Files.isDirectory(file, LinkOption.NOFOLLOW_LINKS)) {
+                walk(file, candidates);
+            }
+        }
+        NavigableMap<String, Local> changed = new TreeMap<>();
+        for (String path : candidates) {
+            Entry entry = base.get(path);
+            Local local = stat(path);
+            if (local == null) {
+                if (entry != null) {
+                    changed.put(path, null);
+                }
+                continue;
+            }
+            if (entry != null && entry.directory == local.directory
+                    && (local.directory || entry.size == local.size && entry.modified == local.modified)) {
+                continue;
+            }
+            if (!local.directory) {
+                try {
+                    local.hash = Checksums.sha256(root.resolve(path));
+                } catch (NoSuchFileException e) {
+                    if (entry != null) {
+                        changed.put(path, null);
+                    }
+                    continue;
+                }
+                if (entry != null && !entry.directory && local.hash.equals(entry.hash)) {
+                    entry.size = local.size; // only touched
+                    entry.modified = local.modified;
+                    continue;
+                }
+            }
+            changed.put(path, local);
+        }
+        return changed;
+    }
+
+    private void walk(Path dir, Set<String> names) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attrs) {
+                if (path.equals(root)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                if (path.getFileName().toString().startsWith(".")) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                names.add(name(path));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && !path.getFileName().toString().startsWith(".")) {
+                    names.add(name(path));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path path, IOException e) {
+                return FileVisitResult.CONTINUE; // gone while walking
+            }
+        });
+    }
+
+    /**
+     * Null when the path is missing or neither a file nor a directory
+     */
+    private Local stat(String path) throws IOException {
+        if (hidden(path)) {
+            return null;
+        }
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(root.resolve(path), BasicFileAttributes.class,
+                    LinkOption.NOFOLLOW_LINKS);
+            if (!attrs.isDirectory() && !attrs.isRegularFile()) {
+                return null;
+            }
+            return new Local(attrs.isDirectory(), attrs.isDirectory() ? 0 : attrs.size(), attrs.lastModifiedTime().toMillis());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * True when the server record is not the version we synced last; directory times do not count
+     */
+    private static boolean changed(Entry entry, Remote remote) {
+        if (entry == null || remote.deleted) {
+            return entry != null || !remote.deleted;
+        }
+        return entry.directory != remote.directory
+                || !remote.directory && (entry.remoteSize != remote.size || entry.remoteModified != remote.modified);
+    }
+
+    /**
+     * Directories are made right away, files are queued for the pull
+     */
+    private void take(String path, Remote remote, Map<String, Remote> pull) throws IOException {
+        if (remote.directory) {
+            Path dir = root.resolve(path);
+            Files.createDirectories(dir);
+            base.put(path, new Entry(true, 0, Files.getLastModifiedTime(dir).toMillis(), "", 0, remote.modified));
+        } else {
+            pull.put(path, remote);
+        }
+    }
+
+    /**
+     * The server's checksum, asked for when the change list did not have it
+     */
+    private String checksum(DataOutputStream out, DataInputStream in, String path, Remote remote) throws IOException {
+        if (!remote.checksum.isEmpty()) {
+            return remote.checksum;
+        }
+        out.writeUTF("stat");
+        out.writeUTF(path);
+        out.flush();
+        if (!"File found".equals(in.readUTF())) {
+            return "";
+        }
+        in.readLong();
+        return in.readUTF();
+    }
+
+    /**
+     * Moves the local version aside under a conflict name and queues it for upload, returns 1
+     */
+    private int conflict(String path, List<String> push, Map<String, Local> pushed) throws IOException {
+        Path source = root.resolve(path);
+        String name = source.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String stem = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        Path target = source.resolveSibling(stem + " (conflict " + stamp + ")" + extension);
+        for (int i = 2; Files.exists(target, LinkOption.NOFOLLOW_LINKS); i++) {
+            target = source.resolveSibling(stem + " (conflict " + stamp + " " + i + ")" + extension);
+        }
+        Files.move(source, target);
+        base.remove(path);
+        System.out.println("Sync conflict: " + path + " kept as " + target.getFileName());
+
+        Set<String> names = new TreeSet<>();
+        names.add(name(target));
+        walk(target, names);
+        for (String copy : names) {
+            Local local = stat(copy);
+            if (local != null) {
+                if (!local.directory) {
+                    local.hash = Checksums.sha256(root.resolve(copy));
+                }
+                push.add(copy);
+                pushed.put(copy, local);
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * sync-push: per file the server version we last saw, then the files and directories as one
+     * TreeStream; the server's records come back. A file changed on the server meanwhile is refused
+     * and marked dirty, the next sync sees both changes and makes it a conflict.
+     */
+    private boolean push(DataOutputStream out, DataInputStream in, List<String> push, Map<String, Local> pushed) throws IOException {
+        if (push.isEmpty()) {
+            return true;
+        }
+        out.writeUTF("sync-push");
+        List<String> files = new ArrayList<>();
+        for (String path : push) {
+            if (!pushed.get(path).directory) {
+                files.add(path);
+            }
+        }
+        out.writeInt(files.size());
+        for (String path : files) {
+            Entry entry = base.get(path);
+            boolean found = entry != null && !entry.directory;
+            out.writeUTF(path);
+            out.writeBoolean(found);
+            if (found) {
+                out.writeLong(entry.remoteSize);
+                out.writeLong(entry.remoteModified);
+            }
+        }
+        TreeStream.write(root, push, out);
+        String status = in.readUTF();
+        int count = in.readInt();
+        Set<String> done = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            String path = in.readUTF();
+            if (!in.readBoolean()) {
+                continue;
+            }
+            boolean directory = in.readBoolean();
+            long size = in.readLong();
+            long modified = in.readLong();
+            Local local = pushed.get(path);
+            if (local != null && local.directory == directory && (directory || local.size == size)) {
+                base.put(path, new Entry(directory, local.size, local.modified, local.hash, size, modified));
+                done.add(path);
+            }
+        }
+        int refused = in.readInt();
+        for (int i = 0; i < refused; i++) {
+            String path = in.readUTF();
+            System.out.println("Sync: " + path + " changed on the server meanwhile, not uploaded");
+            markDirty(path);
+        }
+        if (!"OK".equals(status)) {
+            System.err.println("Server: " + status);
+        }
+        return done.size() == pushed.size();
+    }
+
+    /**
+     * sync-pull: the files as one TreeStream; a file deleted on the server meanwhile just does not come
+     */
+    private boolean pull(DataOutputStream out, DataInputStream in, Map<String, Remote> pull) throws IOException {
+        if (pull.isEmpty()) {
+            return true;
+        }
+        out.writeUTF("sync-pull");
+        out.writeInt(pull.size());
+        for (String path : pull.keySet()) {
+            out.writeUTF(path);
+        }
+        out.flush();
+        List<String> received = new ArrayList<>();
+        boolean complete = true;
+        try {
+            TreeStream.read(in, root, received);
+        } catch (SocketException | EOFException e) {
+            throw e;
+        } catch (IOException e) {
+            e.printStackTrace();
+            complete = false;
+        }
+        for (String path : received) {
+            Remote remote = pull.get(path);
+            Local local = stat(path);
+            if (remote == null || local == null || local.directory) {
+                continue;
+            }
+            local.hash = Checksums.sha256(root.resolve(path));
+            base.put(path, new Entry(false, local.size, local.modified, local.hash, remote.size, remote.modified));
+        }
+        return complete;
+    }
+
+    /**
+     * sync-delete, deepest paths first; the server keeps what changed since we saw it
+     */
+    private int deleteRemote(DataOutputStream out, DataInputStream in, NavigableSet<String> paths) throws IOException {
+        if (paths.isEmpty()) {
+            return 0;
+        }
+        out.writeUTF("sync-delete");
+        out.writeInt(paths.size());
+        for (String path : paths.descendingSet()) {
+            Entry entry = base.remove(path);
+            out.writeUTF(path);
+            out.writeBoolean(entry.directory);
+            out.writeLong(entry.remoteSize);
+            out.writeLong(entry.remoteModified);
+        }
+        out.flush();
+        return in.readInt();
+    }
+
+    /**
+     * Deepest paths first; a file edited since the change list was read stays, as does a
+     * directory that still has something in it, both are uploaded next time
+     */
+    private int deleteLocal(NavigableSet<String> paths) throws IOException {
+        int deleted = 0;
+        for (String path : paths.descendingSet()) {
+            Entry entry = base.remove(path);
+            Local local = stat(path);
+            if (entry == null || local == null) {
+                continue;
+            }
+            if (!local.directory && (local.size != entry.size || local.modified != entry.modified)) {
+                markDirty(path);
+                continue;
+            }
+            try {
+                Files.delete(root.resolve(path));
+                deleted++;
+            } catch (DirectoryNotEmptyException e) {
+                markDirty(path);
+            }
+        }
+        return deleted;
+    }
+
+    private static <V> NavigableMap<String, V> subtree(NavigableMap<String, V> map, String path) {
+        return path.isEmpty() ? map : map.subMap(path + "/", true, path + "0", false); // '0' follows '/'
+    }
+
+    private static boolean hidden(String path) {
+        for (String part : path.split("/")) {
+            if (part.startsWith(".")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String name(Path path) {
+        return root.relativize(path).toString().replace('\\', '/');
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!Files.exists(stateFile)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(stateFile), BUFFER_SIZE))) {
+            if (in.readInt() != STATE_VERSION) {
+                return;
+            }
+            long savedCursor = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                base.put(in.readUTF(), new Entry(in.readBoolean(), in.readLong(), in.readLong(), in.readUTF(),
+                        in.readLong(), in.readLong()));
+            }
+            cursor = savedCursor;
+        } catch (IOException e) {
+            e.printStackTrace(); // start over, the first sync compares contents
+            base.clear();
+            cursor = 0;
+        }
+    }
+
+    /**
+     * Written aside and moved over the old state, so a crash leaves one or the other
+     */
+    private void save() throws IOException {
+        Files.createDirectories(stateFile.getParent());
+        Path tmp = stateFile.resolveSibling("state.tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), BUFFER_SIZE))) {
+            out.writeInt(STATE_VERSION);
+            out.writeLong(cursor);
+            out.writeInt(base.size());
+            for (Map.Entry<String, Entry> e : base.entrySet()) {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeBoolean(entry.directory);
+                out.writeLong(entry.size);
+                out.writeLong(entry.modified);
+                out.writeUTF(entry.hash);
+                out.writeLong(entry.remoteSize);
+                out.writeLong(entry.remoteModified);
+            }
+        }
+        Files.move(tmp, stateFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void markDirty(String path) {
+        synchronized (events) {
+            dirty.add(path);
+            lastEvent = System.currentTimeMillis();
+            events.notifyAll();
+        }
+    }
+
+    private void markRescan() {
+        synchronized (events) {
+            rescan = true;
+            lastEvent = System.currentTimeMillis();
+            events.notifyAll();
+        }
+    }
+
+    /**
+     * Registers the directory and every directory below it that is not hidden
+     */
+    private void register(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attrs) throws IOException {
+                if (!path.equals(root) && path.getFileName().toString().startsWith(".")) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                WatchKey key = path.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                synchronized (keys) {
+                    keys.put(key, path);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path path, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                Path dir;
+                synchronized (keys) {
+                    dir = keys.get(key);
+                }
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+                        markRescan();
+                        continue;
+                    }
+                    Path path = dir.resolve((Path) event.context());
+                    String name = name(path);
+                    if (hidden(name)) {
+                        continue;
+                    }
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+                            && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                        try {
+                            register(path);
+                        } catch (IOException e) {
+                            markRescan();
+                        }
+                    }
+                    markDirty(name);
+                }
+                if (!key.reset()) {
+                    synchronized (keys) {
+                        keys.remove(key);
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // stopped
+        }
+    }
+
+    private void autoSync(long intervalMs) {
+        while (true) {
+            synchronized (events) {
+                long deadline = System.currentTimeMillis() + intervalMs;
+                try {
+                    while (!auto || dirty.isEmpty() && !rescan && System.currentTimeMillis() < deadline) {
+                        events.wait(auto ? Math.max(1, deadline - System.currentTimeMillis()) : 0);
+                    }
+                    // let a burst of changes settle first
+                    while (System.currentTimeMillis() - lastEvent < QUIET_MS) {
+                        events.wait(QUIET_MS);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            if (auto) {
+                sync();
+            }
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package ru.onetwo33.client;
+
+import ru.onetwo33.common.Checksums;
+import ru.onetwo33.common.PartFile;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs uploads and downloads on a fixed number of background workers, each over its own
+ * socket channel, so the window stays responsive and several files move at once.
+ * Transfers use the resume-upload / resume-download commands: a cancelled or broken
+ * transfer leaves a .part behind and the next one for the same file continues from there.
+ * Uploads are sent with transferTo straight from the file.
+ */
+public class TransferManager {
+
+    private static final long SLICE = 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long REPORT_INTERVAL_NS = 200_000_000;
+
+    public enum Direction {
+        UPLOAD, DOWNLOAD
+    }
+
+    public enum State {
+        QUEUED, RUNNING, DONE, FAILED, CANCELLED
+    }
+
+    public class Transfer {
+        private final String filename;
+        private final Direction direction;
+
+        private volatile State state = State.QUEUED;
+        private volatile String message = "";
+        private volatile long size = -1;
+        private volatile long done;
+        private volatile double bytesPerSecond;
+        private volatile SocketChannel channel;
+        private volatile boolean cancelled;
+
+        private long lastReport;
+        private long lastDone;
+
+        Transfer(String filename, Direction direction) {
+            this.filename = filename;
+            this.direction = direction;
+        }
+
+        public String getFilename() {
+            return filename;
+        }
+
+        public Direction getDirection() {
+            return direction;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        /**
+         * -1 until the server answered
+         */
+        public long getSize() {
+            return size;
+        }
+
+        public long getDone() {
+            return done;
+        }
+
+        /**
+         * Smoothed over the last reports
+         */
+        public double getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+
+        /**
+         * Seconds left at the current speed, -1 when unknown
+         */
+        public long getEtaSeconds() {
+            if (state != State.RUNNING || size < 0 || bytesPerSecond < 1) {
+                return -1;
+            }
+            return (long) ((size - done) / bytesPerSecond);
+        }
+
+        public boolean isFinished() {
+            return state == State.DONE || state == State.FAILED || state == State.CANCELLED;
+        }
+
+        /**
+         * Stops a running transfer by closing its channel, a queued one never starts.
+         * What was received so far stays in the .part file.
+         */
+        public void cancel() {
+            if (isFinished()) {
+                return;
+            }
+            cancelled = true;
+            if (state == State.QUEUED) {
+                state = State.CANCELLED;
+            }
+            SocketChannel current = channel;
+            if (current != null) {
+                try {
+                    current.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void started(long size, long offset) {
+            this.size = size;
+            this.done = offset;
+            lastDone = offset;
+            lastReport = System.nanoTime();
+        }
+
+        private void progress(long bytes) {
+            done += bytes;
+            long now = System.nanoTime();
+            if (now - lastReport >= REPORT_INTERVAL_NS) {
+                double current = (done - lastDone) * 1e9 / (now - lastReport);
+                bytesPerSecond = bytesPerSecond == 0 ? current : bytesPerSecond * 0.7 + current * 0.3;
+                lastDone = done;
+                lastReport = now;
+            }
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final ExecutorService workers;
+    private final List<Transfer> transfers = new CopyOnWriteArrayList<>();
+
+    public TransferManager(String host, int port, int concurrentTransfers) {
+        this.host = host;
+        this.port = port;
+        AtomicInteger count = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(concurrentTransfers, r -> {
+            Thread thread = new Thread(r, "transfer-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public Transfer upload(String filename) {
+        return submit(new Transfer(filename, Direction.UPLOAD));
+    }
+
+    public Transfer download(String filename) {
+        return submit(new Transfer(filename, Direction.DOWNLOAD));
+    }
+
+    /**
+     * Every transfer of this session in submission order
+     */
+    public List<Transfer> getTransfers() {
+        return transfers;
+    }
+
+    public void shutdown() {
+        for (Transfer transfer : transfers) {
+            transfer.cancel();
+        }
+        workers.shutdownNow();
+    }
+
+    /**
+     * A second transfer of a file that is still queued or moving is refused: both would
+     * write the same .part and the same local file
+     */
+    private synchronized Transfer submit(Transfer transfer) {
+        Path path = Path.of(transfer.filename).normalize();
+        for (Transfer other : transfers) {
+            if (!other.isFinished() && Path.of(other.filename).normalize().equals(path)) {
+                transfer.message = "Already transferring";
+                transfer.state = State.FAILED;
+                transfers.add(transfer);
+                return transfer;
+            }
+        }
+        transfers.add(transfer);
+        workers.execute(() -> run(transfer));
+        return transfer;
+    }
+
+    private void run(Transfer transfer) {
+        if (transfer.cancelled) {
+            transfer.state = State.CANCELLED;
+            return;
+        }
+        transfer.state = State.RUNNING;
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port))) {
+            transfer.channel = channel;
+            if (transfer.cancelled) {
+                transfer.state = State.CANCELLED; // cancelled while connecting
+                return;
+            }
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            DataInputStream in = new DataInputStream(Channels.newInputStream(channel)); // no read-ahead, the channel is read directly too
+            if (transfer.direction == Direction.UPLOAD) {
+                upload(transfer, channel, out, in);
+            } else {
+                download(transfer, channel, out, in);
+            }
+            out.writeUTF("exit");
+            out.flush();
+            in.readUTF();
+            transfer.state = State.DONE;
+        } catch (FileNotFoundException e) {
+            transfer.message = "File not found";
+            transfer.state = State.FAILED;
+        } catch (IOException e) {
+            if (transfer.cancelled) {
+                transfer.state = State.CANCELLED;
+            } else {
+                e.printStackTrace();
+                transfer.message = e.getMessage() != null ? e.getMessage() : e.toString();
+                transfer.state = State.FAILED;
+            }
+        } finally {
+            transfer.channel = null;
+        }
+    }
+
+    private void upload(Transfer transfer, SocketChannel channel, DataOutputStream out, DataInputStream in) throws IOException {
+        Path path = Path.of("client", transfer.filename);
+        if (!Files.isRegularFile(path)) {
+            throw new FileNotFoundException(path.toString());
+        }
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = file.size();
+            out.writeUTF("resume-upload");
+            out.writeUTF(transfer.filename);
+            out.writeLong(size);
+            out.flush();
+            long position = in.readLong();
+            long checksum = in.readLong();
+            if (position > size || Checksums.crc32(path, position) != checksum) {
+                position = 0; // the server holds the start of another version
+            }
+            out.writeLong(position);
+            out.flush();
+            transfer.started(size, position);
+            while (position < size) {
+                long sent = file.transferTo(position, Math.min(SLICE, size - position), channel);
+                position += sent;
+                transfer.progress(sent);
+            }
+            String status = in.readUTF();
+            if (!"OK".equals(status)) {
+                throw new IOException("Server: " + status);
+            }
+        }
+    }
+
+    private void download(Transfer transfer, SocketChannel channel, DataOutputStream out, DataInputStream in) throws IOException {
+        try (PartFile part = PartFile.open(Path.of("client", transfer.filename))) {
+            out.writeUTF("resume-download");
+            out.writeUTF(transfer.filename);
+            out.writeLong(part.offset());
+            out.writeLong(part.checksum());
+            out.flush();
+            if ("File not found".equals(in.readUTF())) {
+                throw new FileNotFoundException(transfer.filename);
+            }
+            long size = in.readLong();
+            if (in.readLong() != part.offset()) {
+                part.restart(); // the server's file changed since
+            }
+            long offset = part.offset();
+            transfer.started(size, offset);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            ByteBuffer chunk = ByteBuffer.wrap(buffer);
+            long remaining = size - offset;
+            while (remaining > 0) {
+                chunk.clear().limit((int) Math.min(BUFFER_SIZE, remaining));
+                int read = channel.read(chunk);
+                if (read < 0) {
+                    throw new EOFException(transfer.filename);
+                }
+                part.write(buffer, 0, read);
+                remaining -= read;
+                transfer.progress(read);
+            }
+            part.commit();
+        }
+    }
+}
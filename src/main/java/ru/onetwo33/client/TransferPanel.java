@@ -0,0 +1,157 @@
+package ru.onetwo33.client;
+
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+import javax.swing.table.TableCellRenderer;
+import java.awt.*;
+import java.util.List;
+
+/**
+ * Table of the transfers with progress, speed and ETA, refreshed by a timer on the EDT
+ * while something is moving; the workers never touch Swing.
+ */
+public class TransferPanel extends JPanel {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int REFRESH_MS = 250;
+    private static final String[] COLUMNS = {"File", "", "Progress", "Speed", "ETA", "State"};
+
+    private final TransferManager manager;
+    private final TransferTableModel model = new TransferTableModel();
+    private final JTable table = new JTable(model);
+    private final Timer timer = new Timer(REFRESH_MS, e -> refresh());
+
+    public TransferPanel(TransferManager manager) {
+        super(new BorderLayout());
+        this.manager = manager;
+
+        table.getColumnModel().getColumn(0).setPreferredWidth(160);
+        table.getColumnModel().getColumn(1).setPreferredWidth(40);
+        table.getColumnModel().getColumn(2).setPreferredWidth(160);
+        table.getColumnModel().getColumn(2).setCellRenderer(new ProgressRenderer());
+
+        JButton btnCancel = new JButton("CANCEL");
+        btnCancel.addActionListener(a -> {
+            List<TransferManager.Transfer> transfers = manager.getTransfers();
+            for (int row : table.getSelectedRows()) {
+                transfers.get(table.convertRowIndexToModel(row)).cancel();
+            }
+            refresh();
+        });
+
+        add(new JScrollPane(table), BorderLayout.CENTER);
+        add(btnCancel, BorderLayout.SOUTH);
+    }
+
+    /**
+     * Call on the EDT after submitting a transfer
+     */
+    public void transferAdded() {
+        model.fireTableDataChanged();
+        timer.start();
+    }
+
+    private void refresh() {
+        if (model.getRowCount() > 0) {
+            model.fireTableRowsUpdated(0, model.getRowCount() - 1); // keeps the selection
+        }
+        boolean active = false;
+        for (TransferManager.Transfer transfer : manager.getTransfers()) {
+            active |= !transfer.isFinished();
+        }
+        if (!active) {
+            timer.stop();
+        }
+    }
+
+    static String bytes(double bytes) {
+        if (bytes < 1024) {
+            return String.format("%.0f B", bytes);
+        }
+        if (bytes < 1024 * 1024) {
+            return String.format("%.1f KB", bytes / 1024);
+        }
+        if (bytes < 1024 * 1024 * 1024) {
+            return String.format("%.1f MB", bytes / (1024 * 1024));
+        }
+        return String.format("%.2f GB", bytes / (1024 * 1024 * 1024));
+    }
+
+    static String eta(long seconds) {
+        if (seconds < 0) {
+            return "";
+        }
+        if (seconds >= 3600) {
+            return String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+        }
+        return String.format("%d:%02d", seconds / 60, seconds % 60);
+    }
+
+    private class TransferTableModel extends AbstractTableModel {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public int getRowCount() {
+            return manager.getTransfers().size();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return COLUMNS.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return COLUMNS[column];
+        }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            TransferManager.Transfer transfer = manager.getTransfers().get(row);
+            switch (column) {
+                case 0:
+                    return transfer.getFilename();
+                case 1:
+                    return transfer.getDirection() == TransferManager.Direction.UPLOAD ? "up" : "down";
+                case 2:
+                    return transfer;
+                case 3:
+                    return transfer.getState() == TransferManager.State.RUNNING
+                            ? bytes(transfer.getBytesPerSecond()) + "/s" : "";
+                case 4:
+                    return eta(transfer.getEtaSeconds());
+                default:
+                    return transfer.getMessage().isEmpty()
+                            ? transfer.getState().toString()
+                            : transfer.getState() + ": " + transfer.getMessage();
+            }
+        }
+    }
+
+    private static class ProgressRenderer extends JProgressBar implements TableCellRenderer {
+
+        private static final long serialVersionUID = 1L;
+
+        ProgressRenderer() {
+            super(0, 1000);
+            setStringPainted(true);
+        }
+
+        @Override
+        public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected,
+                                                       boolean hasFocus, int row, int column) {
+            TransferManager.Transfer transfer = (TransferManager.Transfer) value;
+            long size = transfer.getSize();
+            if (size < 0) {
+                setValue(0);
+                setString("");
+            } else {
+                setValue(size == 0 ? 1000 : (int) (transfer.getDone() * 1000 / size));
+                setString(bytes(transfer.getDone()) + " / " + bytes(size));
+            }
+            return this;
+        }
+    }
+}
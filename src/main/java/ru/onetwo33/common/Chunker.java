@@ -0,0 +1,91 @@
+package ru.onetwo33.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Content-defined chunking with a gear rolling hash: a cut is made where the hash of the last
+ * bytes matches the mask, so an insert only changes the chunks around it.
+ * Chunks are 2..64 KB, 8 KB on average, and are identified by their SHA-256.
+ */
+public final class Chunker {
+
+    public static final int MIN_SIZE = 2 * 1024;
+    public static final int MAX_SIZE = 64 * 1024;
+
+    // 13 high bits -> a cut every 8 KB on average
+    private static final long MASK = ((1L << 13) - 1) << (64 - 13);
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x0133_0133L); // same table on client and server
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private Chunker() {
+    }
+
+    public static List<Chunk> split(Path path) throws IOException {
+        List<Chunk> chunks = new ArrayList<>();
+        MessageDigest digest = Checksums.sha256();
+        byte[] buffer = new byte[MAX_SIZE];
+        try (InputStream in = Files.newInputStream(path)) {
+            long offset = 0;
+            int length = 0;
+            long hash = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                int start = 0;
+                for (int i = 0; i < read; i++) {
+                    hash = (hash << 1) + GEAR[buffer[i] & 0xFF];
+                    length++;
+                    if (length >= MAX_SIZE || (length >= MIN_SIZE && (hash & MASK) == 0)) {
+                        digest.update(buffer, start, i + 1 - start);
+                        chunks.add(new Chunk(offset, length, Checksums.toHex(digest.digest())));
+                        offset += length;
+                        start = i + 1;
+                        length = 0;
+                        hash = 0;
+                    }
+                }
+                digest.update(buffer, start, read - start);
+            }
+            if (length > 0) {
+                chunks.add(new Chunk(offset, length, Checksums.toHex(digest.digest())));
+            }
+        }
+        return chunks;
+    }
+
+    public static class Chunk {
+        private final long offset;
+        private final int length;
+        private final String id;
+
+        public Chunk(long offset, int length, String id) {
+            this.offset = offset;
+            this.length = length;
+            this.id = id;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public String getId() {
+            return id;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package ru.onetwo33.common;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Per-transfer compression. Compressed data goes in blocks of [int length][bytes]
+ * terminated by a zero length, so the stream ends without closing the socket and
+ * neither side ever holds more than one block.
+ */
+public final class Compression {
+
+    public enum Codec {
+        NONE(Deflater.NO_COMPRESSION),
+        FAST(Deflater.BEST_SPEED),
+        BEST(Deflater.BEST_COMPRESSION);
+
+        private final int level;
+
+        Codec(int level) {
+            this.level = level;
+        }
+
+        public static Codec of(String name) {
+            try {
+                return valueOf(name.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                return NONE;
+            }
+        }
+    }
+
+    public static final int BLOCK_SIZE = 64 * 1024;
+
+    private static final byte[][] MAGIC = {
+            {0x1f, (byte) 0x8b},                               // gzip
+            {0x50, 0x4b, 0x03, 0x04},                          // zip, docx, jar
+            {(byte) 0x89, 0x50, 0x4e, 0x47},                   // png
+            {(byte) 0xff, (byte) 0xd8, (byte) 0xff},           // jpeg
+            {0x47, 0x49, 0x46, 0x38},                          // gif
+            {0x28, (byte) 0xb5, 0x2f, (byte) 0xfd},            // zstd
+            {(byte) 0xfd, 0x37, 0x7a, 0x58, 0x5a, 0x00},       // xz
+            {0x42, 0x5a, 0x68},                                // bzip2
+            {0x37, 0x7a, (byte) 0xbc, (byte) 0xaf, 0x27, 0x1c},// 7z
+            {0x52, 0x61, 0x72, 0x21},                          // rar
+            {0x04, 0x22, 0x4d, 0x18},                          // lz4
+    };
+
+    private Compression() {
+    }
+
+    /**
+     * Already compressed content is sent as is, detected from the first bytes
+     */
+    public static Codec choose(Codec requested, byte[] head, int length) {
+        if (requested == Codec.NONE) {
+            return Codec.NONE;
+        }
+        for (byte[] magic : MAGIC) {
+            if (startsWith(head, length, magic, 0)) {
+                return Codec.NONE;
+            }
+        }
+        // mp4/mov/heic: [size]ftyp
+        if (startsWith(head, length, new byte[]{0x66, 0x74, 0x79, 0x70}, 4)) {
+            return Codec.NONE;
+        }
+        return requested;
+    }
+
+    /**
+     * Compressing stream over out; close() ends the stream but leaves out open
+     */
+    public static OutputStream compress(OutputStream out, Codec codec) {
+        Deflater deflater = new Deflater(codec.level);
+        return new DeflaterOutputStream(new BlockOutputStream(out), deflater, BLOCK_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    deflater.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * Decompressing stream reading blocks from in until the terminating block
+     */
+    public static InputStream decompress(InputStream in) {
+        Inflater inflater = new Inflater();
+        return new InflaterInputStream(new BlockInputStream(in), inflater, BLOCK_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+        };
+    }
+
+    private static boolean startsWith(byte[] data, int length, byte[] prefix, int offset) {
+        if (length < offset + prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class BlockOutputStream extends OutputStream {
+        private final DataOutputStream out;
+
+        BlockOutputStream(OutputStream out) {
+            this.out = new DataOutputStream(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > 0) {
+                out.writeInt(len);
+                out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.writeInt(0);
+            out.flush();
+        }
+    }
+
+    private static class BlockInputStream extends FilterInputStream {
+        private int remaining;
+        private boolean finished;
+
+        BlockInputStream(InputStream in) {
+            super(new DataInputStream(in));
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (finished) {
+                return -1;
+            }
+            if (remaining == 0) {
+                remaining = ((DataInputStream) in).readInt();
+                if (remaining == 0) {
+                    finished = true;
+                    return -1;
+                }
+            }
+            int read = in.read(b, off, Math.min(len, remaining));
+            if (read < 0) {
+                throw new EOFException();
+            }
+            remaining -= read;
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return finished ? 0 : remaining;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // drain to the terminator, the socket stays open
+            byte[] skip = new byte[BLOCK_SIZE];
+            while (read(skip, 0, skip.length) >= 0) {
+                // nothing
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package ru.onetwo33.common;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * rsync-style delta: the receiver signs the blocks of its old copy, the sender walks its new file
+ * with a rolling checksum and sends block references for matches and literal bytes for the rest.
+ * <p>
+ * Signatures: [int blockSize][int count]([int weak][16 bytes md5])*
+ * Delta: (COPY [int index] | LITERAL [int length][bytes])* END
+ */
+public final class Delta {
+
+    public static final byte END = 0;
+    public static final byte COPY = 1;
+    public static final byte LITERAL = 2;
+
+    private static final int MIN_BLOCK_SIZE = 2 * 1024;
+    private static final int MAX_BLOCK_SIZE = 64 * 1024;
+    private static final int MAX_LITERAL = 64 * 1024;
+
+    private Delta() {
+    }
+
+    public static int blockSize(long fileSize) {
+        int size = (int) Math.sqrt(fileSize) & ~7;
+        return Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+    }
+
+    /**
+     * Signatures of the full blocks of the basis file, nothing if there is no basis
+     * @return block size the delta will refer to
+     */
+    public static int writeSignatures(Path basis, DataOutputStream out) throws IOException {
+        if (!Files.isRegularFile(basis)) {
+            out.writeInt(MIN_BLOCK_SIZE);
+            out.writeInt(0);
+            return MIN_BLOCK_SIZE;
+        }
+        long size = Files.size(basis);
+        int blockSize = blockSize(size);
+        out.writeInt(blockSize);
+        out.writeInt((int) (size / blockSize));
+        MessageDigest md5 = md5();
+        byte[] block = new byte[blockSize];
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(basis))) {
+            for (long i = 0; i < size / blockSize; i++) {
+                in.readFully(block);
+                out.writeInt(RollingChecksum.of(block, 0, blockSize));
+                out.write(md5.digest(block));
+            }
+        }
+        return blockSize;
+    }
+
+    /**
+     * Reads the receiver's signatures and writes the delta of the new file against them
+     */
+    public static void writeDelta(Path source, DataInputStream signatures, DataOutputStream out) throws IOException {
+        int blockSize = signatures.readInt();
+        int count = signatures.readInt();
+        Map<Integer, List<Integer>> byWeak = new HashMap<>();
+        byte[][] strong = new byte[count][16];
+        for (int i = 0; i < count; i++) {
+            byWeak.computeIfAbsent(signatures.readInt(), k -> new ArrayList<>(1)).add(i);
+            signatures.readFully(strong[i]);
+        }
+
+        MessageDigest md5 = md5();
+        byte[] literal = new byte[MAX_LITERAL];
+        int literalLength = 0;
+        byte[] window = new byte[blockSize]; // ring buffer
+        int head = 0;
+        RollingChecksum rolling = new RollingChecksum(blockSize);
+
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(source), MAX_BLOCK_SIZE)) {
+            int filled = in.readNBytes(window, 0, blockSize);
+            rolling.reset(window, 0, filled);
+            while (filled == blockSize) {
+                Integer match = count == 0 ? null : findBlock(byWeak.get(rolling.value()), window, head, strong, md5);
+                if (match != null) {
+                    literalLength = flushLiteral(out, literal, literalLength);
+                    out.writeByte(COPY);
+                    out.writeInt(match);
+                    head = 0;
+                    filled = in.readNBytes(window, 0, blockSize);
+                    rolling.reset(window, 0, filled);
+                    continue;
+                }
+                int next = in.read();
+                if (next < 0) {
+                    break;
+                }
+                byte out0 = window[head];
+                if (literalLength == literal.length) {
+                    literalLength = flushLiteral(out, literal, literalLength);
+                }
+                literal[literalLength++] = out0;
+                window[head] = (byte) next;
+                head = (head + 1) % blockSize;
+                rolling.roll(out0, (byte) next);
+            }
+            // the tail that never formed a matching block
+            for (int i = 0; i < filled; i++) {
+                if (literalLength == literal.length) {
+                    literalLength = flushLiteral(out, literal, literalLength);
+                }
+                literal[literalLength++] = window[(head + i) % blockSize];
+            }
+            flushLiteral(out, literal, literalLength);
+        }
+        out.writeByte(END);
+    }
+
+    /**
+     * Rebuilds the new file from the basis and the delta
+     */
+    public static void apply(Path basis, int blockSize, DataInputStream delta, OutputStream out) throws IOException {
+        byte[] buffer = new byte[Math.max(blockSize, MAX_LITERAL)];
+        RandomAccessFile raf = Files.isRegularFile(basis) ? new RandomAccessFile(basis.toFile(), "r") : null;
+        try {
+            while (true) {
+                byte op = delta.readByte();
+                if (op == END) {
+                    return;
+                } else if (op == COPY) {
+                    if (raf == null) {
+                        throw new IOException("Block reference without basis file");
+                    }
+                    raf.seek((long) delta.readInt() * blockSize);
+                    raf.readFully(buffer, 0, blockSize);
+                    out.write(buffer, 0, blockSize);
+                } else if (op == LITERAL) {
+                    int length = delta.readInt();
+                    if (length > MAX_LITERAL) {
+                        throw new IOException("Literal too large: " + length);
+                    }
+                    delta.readFully(buffer, 0, length);
+                    out.write(buffer, 0, length);
+                } else {
+                    throw new IOException("Unknown delta op " + op);
+                }
+            }
+        } catch (EOFException e) {
+            throw new IOException("Truncated delta", e);
+        } finally {
+            if (raf != null) {
+                raf.close();
+            }
+        }
+    }
+
+    private static Integer findBlock(List<Integer> candidates, byte[] window, int head, byte[][] strong, MessageDigest md5) {
+        if (candidates == null) {
+            return null;
+        }
+        md5.update(window, head, window.length - head);
+        md5.update(window, 0, head);
+        byte[] digest = md5.digest();
+        for (int index : candidates) {
+            if (Arrays.equals(digest, strong[index])) {
+                return index;
+            }
+        }
+        return null;
+    }
+
+    private static int flushLiteral(DataOutputStream out, byte[] literal, int length) throws IOException {
+        if (length > 0) {
+            out.writeByte(LITERAL);
+            out.writeInt(length);
+            out.write(literal, 0, length);
+        }
+        return 0;
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package ru.onetwo33.common;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recursive copy on a fork/join pool: every directory is its own task, its files go out in
+ * batches so that a flat directory with 100k small files is copied by all workers too.
+ * Big files are copied with transferTo in slices, with {@code link} files are hard linked
+ * instead when source and target are on the same filesystem.
+ */
+public class ParallelCopy {
+
+    public static final ForkJoinPool POOL = new ForkJoinPool(Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+
+    private static final int FILES_PER_TASK = 64;
+    private static final long LARGE_FILE = 1024 * 1024;
+    private static final long SLICE = 8 * 1024 * 1024;
+    private static final long PROGRESS_INTERVAL_MS = 1000;
+
+    public interface Listener {
+        /**
+         * Called at most once per second from a pool thread
+         */
+        void progress(long files, long bytes);
+    }
+
+    private final boolean link;
+    private final Listener listener;
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong lastProgress = new AtomicLong(System.currentTimeMillis());
+
+    private volatile boolean cancelled;
+
+    public ParallelCopy(boolean link, Listener listener) {
+        this.link = link;
+        this.listener = listener;
+    }
+
+    /**
+     * Blocks until the tree is copied, existing directories are merged, an existing file fails the copy
+     */
+    public void copy(Path source, Path target) throws IOException {
+        ForkJoinTask<Void> task = Files.isDirectory(source)
+                ? new DirectoryTask(source, target)
+                : new FilesTask(List.of(source), null, null, target);
+        try {
+            if (ForkJoinTask.inForkJoinPool()) {
+                task.invoke();
+            } else {
+                POOL.invoke(task);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public long getFiles() {
+        return files.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    private void copyFile(Path source, Path target) throws IOException {
+        if (cancelled) {
+            return;
+        }
+        if (link && hardLink(source, target)) {
+            files.incrementAndGet();
+            reportProgress();
+            return;
+        }
+        long size = Files.size(source);
+        if (size < LARGE_FILE) {
+            Files.copy(source, target, LinkOption.NOFOLLOW_LINKS);
+            bytes.addAndGet(size);
+        } else {
+            long position = 0;
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                while (position < size && !cancelled) {
+                    long copied = in.transferTo(position, Math.min(SLICE, size - position), out);
+                    if (copied == 0) {
+                        break; // the source got shorter, transferTo would return 0 forever
+                    }
+                    position += copied;
+                    bytes.addAndGet(copied);
+                    reportProgress();
+                }
+            }
+            if (cancelled || position < size) {
+                Files.deleteIfExists(target); // no half-copied files
+                if (!cancelled) {
+                    throw new IOException(String.format("%s was truncated while copying", source));
+                }
+                return;
+            }
+        }
+        files.incrementAndGet();
+        reportProgress();
+    }
+
+    /**
+     * False when the filesystem can not link these two, the file is copied then
+     */
+    private boolean hardLink(Path source, Path target) throws IOException {
+        try {
+            Files.createLink(target, source);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            throw e;
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            return false;
+        }
+    }
+
+    private void reportProgress() {
+        long now = System.currentTimeMillis();
+        long last = lastProgress.get();
+        if (now - last >= PROGRESS_INTERVAL_MS && lastProgress.compareAndSet(last, now)) {
+            listener.progress(files.get(), bytes.get());
+        }
+    }
+
+    private class DirectoryTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path source;
+        private final Path target;
+
+        DirectoryTask(Path source, Path target) {
+            this.source = source;
+            this.target = target;
+        }
+
+        @Override
+        protected void compute() {
+            if (cancelled) {
+                return;
+            }
+            List<ForkJoinTask<Void>> tasks = new ArrayList<>();
+            List<Path> batch = new ArrayList<>();
+            try {
+                if (!Files.isDirectory(target)) {
+                    Files.createDirectory(target);
+                }
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(source)) {
+                    for (Path entry : entries) {
+                        if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                            tasks.add(new DirectoryTask(entry, target.resolve(entry.getFileName().toString())));
+                        } else {
+                            batch.add(entry);
+                            if (batch.size() == FILES_PER_TASK) {
+                                tasks.add(new FilesTask(batch, source, target, null));
+                                batch = new ArrayList<>();
+                            }
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (!batch.isEmpty()) {
+                tasks.add(new FilesTask(batch, source, target, null));
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    private class FilesTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<Path> sources;
+        private final Path sourceDir;
+        private final Path targetDir;
+        private final Path target; // set when a single file is copied under a new name
+
+        FilesTask(List<Path> sources, Path sourceDir, Path targetDir, Path target) {
+            this.sources = sources;
+            this.sourceDir = sourceDir;
+            this.targetDir = targetDir;
+            this.target = target;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                for (Path source : sources) {
+                    copyFile(source, target != null ? target : targetDir.resolve(sourceDir.relativize(source).toString()));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package ru.onetwo33.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Partially received file: target.part plus target.part.journal with "offset crc32" of the
+ * bytes known to be on disk. Reopening continues from the journal offset, a prefix that does
+ * not match its checksum is thrown away. The resume commands also compare {@link #checksum()} with
+ * the sender's copy, so a file that changed between attempts is received again from the start.
+ */
+public class PartFile implements Closeable {
+
+    private static final long JOURNAL_INTERVAL = 1024 * 1024;
+
+    private final Path target;
+    private final Path part;
+    private final Path journal;
+    private final FileChannel channel;
+    private final CRC32 crc = new CRC32();
+
+    private long offset;
+    private long journaledOffset;
+
+    private PartFile(Path target) throws IOException {
+        this.target = target;
+        this.part = target.resolveSibling(target.getFileName() + ".part");
+        this.journal = target.resolveSibling(target.getFileName() + ".part.journal");
+        this.offset = recover();
+        this.journaledOffset = offset;
+        this.channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.truncate(offset);
+        channel.position(offset);
+    }
+
+    public static PartFile open(Path target) throws IOException {
+        return new PartFile(target);
+    }
+
+    /**
+     * Bytes already received, the transfer continues from here
+     */
+    public long offset() {
+        return offset;
+    }
+
+    /**
+     * CRC32 of the bytes before the offset, the sender compares it with the same prefix of its copy
+     */
+    public long checksum() {
+        return crc.getValue();
+    }
+
+    /**
+     * The sender's copy is not the one these bytes came from: throw them away and start at 0
+     */
+    public void restart() throws IOException {
+        channel.truncate(0);
+        channel.position(0);
+        crc.reset();
+        offset = 0;
+        journaledOffset = 0;
+        Files.deleteIfExists(journal);
+    }
+
+    public void write(byte[] buffer, int off, int length) throws IOException {
+        ByteBuffer chunk = ByteBuffer.wrap(buffer, off, length);
+        while (chunk.hasRemaining()) {
+            channel.write(chunk);
+        }
+        crc.update(buffer, off, length);
+        offset += length;
+        if (offset - journaledOffset >= JOURNAL_INTERVAL) {
+            writeJournal();
+        }
+    }
+
+    /**
+     * All bytes are here: move the part file in place and forget the journal
+     */
+    public void commit() throws IOException {
+        channel.force(true);
+        channel.close();
+        Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(journal);
+    }
+
+    /**
+     * Transfer interrupted: keep what arrived for the next attempt
+     */
+    @Override
+    public void close() throws IOException {
+        if (!channel.isOpen()) {
+            return;
+        }
+        try {
+            writeJournal();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void writeJournal() throws IOException {
+        channel.force(false); // data first, the journal must never point past it
+        Path tmp = journal.resolveSibling(journal.getFileName() + ".tmp");
+        Files.writeString(tmp, offset + " " + crc.getValue(), StandardCharsets.UTF_8);
+        Files.move(tmp, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        journaledOffset = offset;
+    }
+
+    private long recover() throws IOException {
+        if (!Files.exists(journal) || !Files.exists(part)) {
+            return 0;
+        }
+        try {
+            String[] record = Files.readString(journal, StandardCharsets.UTF_8).trim().split(" ");
+            long committed = Long.parseLong(record[0]);
+            long checksum = Long.parseLong(record[1]);
+            if (Files.size(part) < committed) {
+                return 0;
+            }
+            byte[] buffer = new byte[64 * 1024];
+            long remaining = committed;
+            try (InputStream in = Files.newInputStream(part)) {
+                while (remaining > 0) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read < 0) {
+                        break;
+                    }
+                    crc.update(buffer, 0, read);
+                    remaining -= read;
+                }
+            }
+            if (remaining == 0 && crc.getValue() == checksum) {
+                return committed;
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Broken journal " + journal + ": " + e);
+        }
+        crc.reset();
+        return 0;
+    }
+}
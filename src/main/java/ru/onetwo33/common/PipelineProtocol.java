@@ -0,0 +1,30 @@
+package ru.onetwo33.common;
+
+/**
+ * Pipelined mode of the storage protocol, entered with writeUTF("pipeline").
+ * <p>
+ * Client frames: [byte type][int id] followed by
+ * DOWNLOAD [utf name] | UPLOAD [utf name][long size] | DATA [int length][bytes] | END (no id, leaves the mode)
+ * <p>
+ * Server frames: [int id][byte type] followed by
+ * FOUND [long size] | DATA [int length][bytes] | DONE | ERROR [utf message] | END (id 0, all requests answered)
+ * <p>
+ * Responses for different ids may be interleaved chunk by chunk.
+ */
+public final class PipelineProtocol {
+
+    public static final String COMMAND = "pipeline";
+
+    public static final byte DOWNLOAD = 1;
+    public static final byte UPLOAD = 2;
+    public static final byte DATA = 3;
+    public static final byte END = 4;
+    public static final byte FOUND = 5;
+    public static final byte DONE = 6;
+    public static final byte ERROR = 7;
+
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    private PipelineProtocol() {
+    }
+}
@@ -0,0 +1,41 @@
+package ru.onetwo33.common;
+
+/**
+ * rsync weak checksum over a fixed size window, updated in O(1) when the window slides by one byte
+ */
+public class RollingChecksum {
+
+    private final int windowSize;
+    private int a;
+    private int b;
+
+    public RollingChecksum(int windowSize) {
+        this.windowSize = windowSize;
+    }
+
+    public void reset(byte[] data, int offset, int length) {
+        a = 0;
+        b = 0;
+        for (int i = 0; i < length; i++) {
+            int x = data[offset + i] & 0xFF;
+            a += x;
+            b += (length - i) * x;
+        }
+    }
+
+    public void roll(byte out, byte in) {
+        int x = out & 0xFF;
+        a += (in & 0xFF) - x;
+        b += a - windowSize * x;
+    }
+
+    public int value() {
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    public static int of(byte[] data, int offset, int length) {
+        RollingChecksum checksum = new RollingChecksum(length);
+        checksum.reset(data, offset, length);
+        return checksum.value();
+    }
+}
@@ -0,0 +1,366 @@
+package ru.onetwo33.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+
+/**
+ * A directory tree as one tar-like stream, so a tree of 100k small files is one exchange
+ * instead of 100k: entries are [byte type][utf path] followed by nothing for DIRECTORY and
+ * [long size][bytes] for FILE, the stream ends with END. Paths are relative and '/'-separated,
+ * a directory comes before anything inside it, hidden entries and links are skipped.
+ * <p>
+ * The writer reads small files ahead on {@link ParallelCopy#POOL}, at most {@link #READ_AHEAD_BYTES}
+ * of them at a time, the reader hands them to the pool to be written while it keeps reading;
+ * files above {@link #SMALL_FILE} are streamed through in place on both sides.
+ */
+public final class TreeStream {
+
+    public static final byte END = 0;
+    public static final byte DIRECTORY = 1;
+    public static final byte FILE = 2;
+
+    public static final long SMALL_FILE = 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int READ_AHEAD = 256;
+    private static final long READ_AHEAD_BYTES = 32 * 1024 * 1024; // file contents held ahead of the socket
+    private static final int WRITE_BUDGET = 64 * 1024 * 1024;
+    private static final byte[] VANISHED = new byte[0];
+
+    private TreeStream() {
+    }
+
+    /**
+     * Target below the root, AccessDeniedException for absolute paths, paths leaving the root
+     * and any component starting with '.', which covers .., .meta, .store and the user table
+     */
+    public static Path resolve(Path root, String relative) throws IOException {
+        if (relative.isEmpty() || relative.indexOf('\0') >= 0) {
+            throw new AccessDeniedException(relative);
+        }
+        Path name;
+        try {
+            name = Path.of(relative);
+        } catch (InvalidPathException e) {
+            throw new AccessDeniedException(relative);
+        }
+        if (name.isAbsolute()) {
+            throw new AccessDeniedException(relative);
+        }
+        for (Path component : name) {
+            if (component.toString().startsWith(".")) {
+                throw new AccessDeniedException(relative);
+            }
+        }
+        Path base = root.toAbsolutePath().normalize();
+        Path path = base.resolve(name).normalize();
+        if (!path.startsWith(base) || path.equals(base)) {
+            throw new AccessDeniedException(relative);
+        }
+        return path;
+    }
+
+    /**
+     * Sends the tree below the directory, returns the number of files sent
+     */
+    public static long write(Path directory, OutputStream target) throws IOException {
+        return write(directory, list(directory), target);
+    }
+
+    /**
+     * Sends only the named entries below the root, each with the directories above it.
+     * Names that do not exist or leave the root are left out. Returns the number of files sent.
+     */
+    public static long write(Path root, Collection<String> names, OutputStream target) throws IOException {
+        Path base = root.toAbsolutePath().normalize();
+        Set<Path> entries = new LinkedHashSet<>();
+        for (String name : names) {
+            Path entry;
+            try {
+                entry = resolve(base, name);
+            } catch (AccessDeniedException e) {
+                continue;
+            }
+            Deque<Path> parents = new ArrayDeque<>();
+            for (Path parent = entry.getParent(); !parent.equals(base); parent = parent.getParent()) {
+                parents.push(parent);
+            }
+            entries.addAll(parents);
+            entries.add(entry);
+        }
+        return write(base, new ArrayList<>(entries), target);
+    }
+
+    private static long write(Path directory, List<Path> entries, OutputStream target) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(target, BUFFER_SIZE));
+        Deque<CompletableFuture<byte[]>> ahead = new ArrayDeque<>();
+        AtomicLong aheadBytes = new AtomicLong();
+        int next = 0; // first entry not read ahead yet
+        long files = 0;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        for (int i = 0; i < entries.size(); i++) {
+            // an empty queue always has room, so entry i is scheduled by now
+            while (next < entries.size() && ahead.size() < READ_AHEAD
+                    && aheadBytes.get() + SMALL_FILE <= READ_AHEAD_BYTES) {
+                aheadBytes.addAndGet(SMALL_FILE);
+                ahead.add(readAhead(entries.get(next++), aheadBytes));
+            }
+            Path entry = entries.get(i);
+            byte[] small = join(ahead.poll());
+            if (small != null) {
+                aheadBytes.addAndGet(-small.length);
+            }
+            if (small == VANISHED) {
+                continue; // deleted since the tree was listed
+            }
+            String name = directory.relativize(entry).toString().replace('\\', '/');
+            if (small == null && Files.isDirectory(entry)) {
+                out.writeByte(DIRECTORY);
+                out.writeUTF(name);
+                continue;
+            }
+            out.writeByte(FILE);
+            out.writeUTF(name);
+            if (small != null) {
+                out.writeLong(small.length);
+                out.write(small);
+            } else {
+                try (InputStream in = Files.newInputStream(entry)) {
+                    long size = Files.size(entry);
+                    out.writeLong(size);
+                    copy(in, out, size, buffer);
+                }
+            }
+            files++;
+        }
+        out.writeByte(END);
+        out.flush();
+        return files;
+    }
+
+    /**
+     * Receives a tree into the directory, returns the number of files written.
+     * The stream is always read up to END; the first failure is thrown after that,
+     * so the connection stays usable.
+     */
+    public static long read(InputStream source, Path directory) throws IOException {
+        return read(source, directory, null);
+    }
+
+    /**
+     * Same, the names of the entries written are added to received when it is not null
+     */
+    public static long read(InputStream source, Path directory, List<String> received) throws IOException {
+        return read(source, directory, received, null);
+    }
+
+    /**
+     * Same, entries accept turns down are read past and not written
+     */
+    public static long read(InputStream source, Path directory, List<String> received, Predicate<String> accept)
+            throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(source, BUFFER_SIZE));
+        Files.createDirectories(directory);
+        Semaphore budget = new Semaphore(WRITE_BUDGET);
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        long files = 0;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        byte type;
+        while ((type = in.readByte()) != END) {
+            String name = in.readUTF();
+            Path target = null;
+            try {
+                target = resolve(directory, name);
+            } catch (IOException e) {
+                failure.compareAndSet(null, e);
+            }
+            if (accept != null && !accept.test(name)) {
+                target = null;
+            }
+            if (type == DIRECTORY) {
+                if (target != null) {
+                    try {
+                        Files.createDirectories(target);
+                        if (received != null) {
+                            received.add(name);
+                        }
+                    } catch (IOException e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+                continue;
+            }
+            if (type != FILE) {
+                throw new IOException("Unknown tree entry " + type);
+            }
+            long size = in.readLong();
+            if (size <= SMALL_FILE) {
+                byte[] data = new byte[(int) size];
+                in.readFully(data);
+                if (target != null) {
+                    Path file = target;
+                    budget.acquireUninterruptibly(data.length + 1);
+                    ParallelCopy.POOL.execute(() -> {
+                        try {
+                            Files.write(file, data);
+                        } catch (IOException e) {
+                            failure.compareAndSet(null, e);
+                        } finally {
+                            budget.release(data.length + 1);
+                        }
+                    });
+                    files++;
+                    if (received != null) {
+                        received.add(name);
+                    }
+                }
+            } else {
+                OutputStream out = open(target, failure);
+                if (out == null) {
+                    copy(in, OutputStream.nullOutputStream(), size, buffer); // read past it, the stream goes on
+                    continue;
+                }
+                try (out) {
+                    copy(in, out, size, buffer);
+                }
+                files++;
+                if (received != null) {
+                    received.add(name);
+                }
+            }
+        }
+        budget.acquireUninterruptibly(WRITE_BUDGET); // every write has finished
+        budget.release(WRITE_BUDGET);
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return files;
+    }
+
+    /**
+     * Null when there is nothing to write to, the failure is recorded then
+     */
+    private static OutputStream open(Path target, AtomicReference<IOException> failure) {
+        if (target == null) {
+            return null;
+        }
+        try {
+            return Files.newOutputStream(target, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            failure.compareAndSet(null, e);
+            return null;
+        }
+    }
+
+    /**
+     * Directories in pre-order, each before its contents
+     */
+    private static List<Path> list(Path directory) throws IOException {
+        List<Path> entries = new ArrayList<>();
+        Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (dir.equals(directory)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                if (hidden(dir)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                entries.add(dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && !hidden(file)) {
+                    entries.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return entries;
+    }
+
+    private static boolean hidden(Path path) {
+        return path.getFileName().toString().startsWith(".");
+    }
+
+    /**
+     * Contents of a small file, null for directories and big files, VANISHED when it is gone.
+     * The caller has charged SMALL_FILE to aheadBytes, the charge is cut to what was really read
+     * before the future completes; the caller takes that off when it writes the contents.
+     */
+    private static CompletableFuture<byte[]> readAhead(Path entry, AtomicLong aheadBytes) {
+        return CompletableFuture.supplyAsync(() -> {
+            byte[] data = null;
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(entry, BasicFileAttributes.class);
+                if (attrs.isRegularFile() && attrs.size() <= SMALL_FILE) {
+                    data = Files.readAllBytes(entry);
+                    if (data.length > SMALL_FILE) {
+                        data = null; // grew since the stat, streamed in place instead
+                    }
+                }
+                return data;
+            } catch (NoSuchFileException e) {
+                return VANISHED;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                aheadBytes.addAndGet((data != null ? data.length : 0) - SMALL_FILE);
+            }
+        }, ParallelCopy.POOL);
+    }
+
+    private static byte[] join(CompletableFuture<byte[]> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out, long size, byte[] buffer) throws IOException {
+        long remaining = size;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+                throw new EOFException();
+            }
+            out.write(buffer, 0, read);
+            remaining -= read;
+        }
+    }
+}
@@ -1,31 +1,45 @@
 package ru.onetwo33.netty;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.channel.socket.SocketChannel;
 
-import java.util.concurrent.ConcurrentLinkedQueue;
+/**
+ * Stateless, one instance serves every channel of the room.
+ * Gets one line per message, masks it in place and forwards the same bytes to the room.
+ */
+@ChannelHandler.Sharable
+public class ChatMessageHandler extends SimpleChannelInboundHandler<ByteBuf> {
 
-public class ChatMessageHandler extends SimpleChannelInboundHandler<String> {
-    public static final ConcurrentLinkedQueue<SocketChannel> channels = new ConcurrentLinkedQueue<>();
+    private final ChatRoom room;
+    private final WordFilter filter;
+
+    public ChatMessageHandler(ChatRoom room, WordFilter filter) {
+        this.room = room;
+        this.filter = filter;
+    }
 
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
         System.out.println("Client connected: " + ctx.channel());
-        channels.add((SocketChannel) ctx.channel());
+        room.join(ctx.channel());
     }
 
     @Override
-    protected void channelRead0(ChannelHandlerContext ctx, String msg) throws Exception {
-        System.out.println("Message from client: " + msg);
-        msg = msg.replace("lol", "***");
-//		ctx.writeAndFlush(msg);
-        String finalMsg = msg;
-        channels.forEach(c -> c.writeAndFlush(finalMsg));
+    protected void channelRead0(ChannelHandlerContext ctx, ByteBuf msg) throws Exception {
+        filter.mask(msg);
+        room.broadcast(msg);
     }
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         System.out.println("Client disconnected: " + ctx.channel());
     }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        cause.printStackTrace();
+        ctx.close();
+    }
 }
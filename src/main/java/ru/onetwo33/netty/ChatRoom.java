@@ -0,0 +1,110 @@
+package ru.onetwo33.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Members of the chat, grouped by the event loop that owns them. A broadcast is the received
+ * bytes themselves, handed to every loop as one task; the loop writes a retained duplicate of
+ * the shared buffer to each of its channels with the void promise and flushes after the last write,
+ * so nothing but the pooled duplicate is created per recipient and no write crosses threads.
+ * Closed channels leave by themselves, channels that are not writable are handled by the policy.
+ */
+public class ChatRoom {
+
+    public enum SlowConsumerPolicy {
+        /**
+         * Skip messages while the outbound buffer is above the high water mark
+         */
+        DROP,
+        /**
+         * Close the connection once its outbound buffer is above the high water mark
+         */
+        DISCONNECT
+    }
+
+    private final SlowConsumerPolicy policy;
+    // each set is only touched by its own loop
+    private final Map<EventLoop, Set<Channel>> members = new ConcurrentHashMap<>();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong disconnected = new AtomicLong();
+
+    public ChatRoom(SlowConsumerPolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Called on the channel's event loop
+     */
+    public void join(Channel channel) {
+        members.computeIfAbsent(channel.eventLoop(), loop -> new HashSet<>()).add(channel);
+        channel.closeFuture().addListener(future -> members.get(channel.eventLoop()).remove(channel));
+    }
+
+    /**
+     * Sends the readable bytes to every member, the caller keeps its reference to the message
+     */
+    public void broadcast(ByteBuf message) {
+        for (Map.Entry<EventLoop, Set<Channel>> entry : members.entrySet()) {
+            ByteBuf shared = message.retainedDuplicate();
+            entry.getKey().execute(() -> deliver(entry.getValue(), shared));
+        }
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getDisconnected() {
+        return disconnected.get();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Set<Channel> channels : members.values()) {
+            size += channels.size();
+        }
+        return size; // racy, for logging only
+    }
+
+    private void deliver(Set<Channel> channels, ByteBuf message) {
+        List<Channel> slow = null;
+        // a failed write or flush closes the channel right here and the close listener
+        // removes it from the set, so the loops run over a copy
+        Channel[] recipients = channels.toArray(new Channel[0]);
+        try {
+            for (Channel channel : recipients) {
+                if (channel.isWritable()) {
+                    channel.write(message.retainedDuplicate(), channel.voidPromise());
+                } else if (policy == SlowConsumerPolicy.DROP) {
+                    dropped.incrementAndGet();
+                } else {
+                    if (slow == null) {
+                        slow = new ArrayList<>();
+                    }
+                    slow.add(channel);
+                }
+            }
+            for (Channel channel : recipients) {
+                channel.flush();
+            }
+        } finally {
+            message.release();
+        }
+        if (slow != null) {
+            for (Channel channel : slow) {
+                disconnected.incrementAndGet();
+                channel.close();
+            }
+        }
+    }
+}
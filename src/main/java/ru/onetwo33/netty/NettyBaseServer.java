@@ -4,30 +4,46 @@ import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.handler.codec.string.StringDecoder;
+import io.netty.handler.codec.LineBasedFrameDecoder;
 import io.netty.handler.codec.string.StringEncoder;
 
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+
 public class NettyBaseServer {
+
+    // a client whose unsent backlog passes the high mark is slow until it drains below the low one
+    private static final WriteBufferWaterMark WATER_MARK = new WriteBufferWaterMark(32 * 1024, 64 * 1024);
+    private static final int MAX_MESSAGE_LENGTH = 64 * 1024;
+
     public NettyBaseServer() {
         EventLoopGroup auth = new NioEventLoopGroup(1);
         EventLoopGroup worker = new NioEventLoopGroup();
+        ChatRoom room = new ChatRoom(ChatRoom.SlowConsumerPolicy.valueOf(
+                System.getProperty("chat.slowConsumer", "drop").toUpperCase(Locale.ROOT)));
+        WordFilter filter = WordFilter.watching(Path.of(System.getProperty("chat.filter", "chat-filter.txt")), List.of("lol"));
+        ChatMessageHandler chat = new ChatMessageHandler(room, filter);
 
         try {
             ServerBootstrap bootstrap = new ServerBootstrap();
             bootstrap.group(auth, worker)
                     .channel(NioServerSocketChannel.class)
+                    .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, WATER_MARK)
                     .childHandler(new ChannelInitializer<>() {
                         @Override
                         protected void initChannel(Channel ch) throws Exception {
                             ch.pipeline().addLast(
                                     new StringEncoder(),
-                                    new StringDecoder(),
+                                    new LineBasedFrameDecoder(MAX_MESSAGE_LENGTH, false, false),
 //									new ByteBufInputHandler(), // in-1
 //									new OutputHandler(), // out-2
-                                    new ChatMessageHandler()
+                                    chat
                             );
                         }
                     });
@@ -0,0 +1,59 @@
+package ru.onetwo33.netty;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import ru.onetwo33.netty.protocol.CommandDispatcher;
+import ru.onetwo33.netty.protocol.FrameDecoder;
+import ru.onetwo33.netty.protocol.FrameEncoder;
+
+import java.nio.file.Path;
+
+/**
+ * Storage server speaking the binary frame protocol (see {@link ru.onetwo33.netty.protocol.Frame})
+ */
+public class NettyProtocolServer {
+    public NettyProtocolServer() {
+        EventLoopGroup auth = new NioEventLoopGroup(1);
+        EventLoopGroup worker = new NioEventLoopGroup();
+        FrameEncoder encoder = new FrameEncoder();
+
+        try {
+            ServerBootstrap bootstrap = new ServerBootstrap();
+            bootstrap.group(auth, worker)
+                    .channel(NioServerSocketChannel.class)
+                    .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(32 * 1024, 64 * 1024))
+                    .childHandler(new ChannelInitializer<>() {
+                        @Override
+                        protected void initChannel(Channel ch) throws Exception {
+                            ch.pipeline().addLast(
+                                    new FrameDecoder(),
+                                    encoder,
+                                    new ChunkedWriteHandler(),
+                                    new CommandDispatcher(Path.of("server"))
+                            );
+                        }
+                    });
+            ChannelFuture future = bootstrap.bind(4001).sync();
+            System.out.println("Server started");
+            future.channel().closeFuture().sync();
+            System.out.println("Server closed");
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } finally {
+            auth.shutdownGracefully();
+            worker.shutdownGracefully();
+        }
+    }
+
+    public static void main(String[] args) {
+        new NettyProtocolServer();
+    }
+}
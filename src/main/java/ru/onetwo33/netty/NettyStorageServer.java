@@ -0,0 +1,70 @@
+package ru.onetwo33.netty;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.RejectedExecutionHandlers;
+import ru.onetwo33.netty.handlers.StorageProtocolHandler;
+import ru.onetwo33.server.index.MetadataIndex;
+
+import java.nio.file.Path;
+
+/**
+ * Netty server for the basic subset of the {@link ru.onetwo33.server.Server} protocol on port 6789:
+ * upload | download | exit. Other commands are refused, see {@link StorageProtocolHandler}
+ */
+public class NettyStorageServer {
+
+    private static final int STORAGE_THREADS = 16;
+    private static final int MAX_PENDING_TASKS = 10_000;
+
+    public NettyStorageServer() {
+        EventLoopGroup auth = new NioEventLoopGroup(1);
+        EventLoopGroup worker = new NioEventLoopGroup();
+        EventExecutorGroup storage = new DefaultEventExecutorGroup(STORAGE_THREADS,
+                new DefaultThreadFactory("storage"), MAX_PENDING_TASKS, RejectedExecutionHandlers.reject());
+
+        MetadataIndex.shared(); // uploads refresh it, a locked store fails here rather than on the first upload
+
+        try {
+            ServerBootstrap bootstrap = new ServerBootstrap();
+            bootstrap.group(auth, worker)
+                    .channel(NioServerSocketChannel.class)
+                    .option(ChannelOption.SO_BACKLOG, 1024)
+                    .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(32 * 1024, 64 * 1024))
+                    .childHandler(new ChannelInitializer<>() {
+                        @Override
+                        protected void initChannel(Channel ch) throws Exception {
+                            ch.pipeline().addLast(
+                                    new ChunkedWriteHandler(),
+                                    new StorageProtocolHandler(Path.of("server"), storage)
+                            );
+                        }
+                    });
+            ChannelFuture future = bootstrap.bind(6789).sync();
+            System.out.println("Server started");
+            future.channel().closeFuture().sync();
+            System.out.println("Server closed");
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        } finally {
+            auth.shutdownGracefully();
+            worker.shutdownGracefully();
+            storage.shutdownGracefully();
+        }
+    }
+
+    public static void main(String[] args) {
+        new NettyStorageServer();
+    }
+}
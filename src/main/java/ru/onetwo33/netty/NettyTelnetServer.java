@@ -4,29 +4,52 @@ import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.RejectedExecutionHandlers;
 import ru.onetwo33.netty.handlers.ByteBufInputHandler;
 import ru.onetwo33.netty.handlers.TelnetMessageHandler;
 import ru.onetwo33.netty.handlers.OutputHandler;
+import ru.onetwo33.server.index.MetadataIndex;
 
 public class NettyTelnetServer {
+
+    private static final int STORAGE_THREADS = 16;
+    private static final int MAX_PENDING_TASKS = 10_000;
+
     public NettyTelnetServer() {
         EventLoopGroup auth = new NioEventLoopGroup(1);
         EventLoopGroup worker = new NioEventLoopGroup();
+        // filesystem commands never run on the event loop
+        EventExecutorGroup storage = new DefaultEventExecutorGroup(STORAGE_THREADS,
+                new DefaultThreadFactory("telnet-storage"), MAX_PENDING_TASKS, RejectedExecutionHandlers.reject());
+
+        MetadataIndex.shared(); // index the tree before the first ls
 
         try {
             ServerBootstrap bootstrap = new ServerBootstrap();
             bootstrap.group(auth, worker)
                     .channel(NioServerSocketChannel.class)
+                    // slow readers stop the chunked writer instead of growing the outbound buffer
+                    .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(32 * 1024, 64 * 1024))
                     .childHandler(new ChannelInitializer<>() {
                         @Override
                         protected void initChannel(Channel ch) throws Exception {
                             ch.pipeline().addLast(
-									new ByteBufInputHandler(),
-									new OutputHandler(),
-                                    new TelnetMessageHandler()
+                                    // coalesces the flushes of a read loop into one syscall
+                                    new FlushConsolidationHandler(256, true),
+                                    new ByteBufInputHandler(),
+                                    new OutputHandler(),
+                                    new ChunkedWriteHandler(),
+                                    new TelnetMessageHandler(storage)
                             );
                         }
                     });
@@ -39,6 +62,7 @@ public class NettyTelnetServer {
         } finally {
             auth.shutdownGracefully();
             worker.shutdownGracefully();
+            storage.shutdownGracefully();
         }
     }
 
@@ -0,0 +1,207 @@
+package ru.onetwo33.netty;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Masks banned terms with '*' directly in the message bytes. The terms are compiled into an
+ * Aho-Corasick automaton with every failure transition resolved ahead of time, so matching is one
+ * table lookup per byte and allocates nothing. Matching ignores ASCII case, other bytes must match exactly.
+ * The dictionary (one term per line, # starts a comment) is rebuilt on a background thread
+ * when its file changes and swapped in atomically, the event loops keep using the old one until then.
+ */
+public class WordFilter {
+
+    private volatile Automaton automaton;
+
+    public WordFilter(Collection<String> terms) {
+        this.automaton = new Automaton(terms);
+    }
+
+    /**
+     * Filter over the terms in the file, or the given defaults while the file does not exist.
+     * Changes to the file are picked up until the JVM exits.
+     */
+    public static WordFilter watching(Path file, Collection<String> defaults) {
+        WordFilter filter = new WordFilter(defaults);
+        if (Files.isRegularFile(file)) {
+            filter.reload(file);
+        }
+        Thread watcher = new Thread(() -> filter.watch(file.toAbsolutePath()), "word-filter-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+        return filter;
+    }
+
+    /**
+     * Masks every banned term between readerIndex and writerIndex, true when something was masked
+     */
+    public boolean mask(ByteBuf buf) {
+        Automaton current = automaton;
+        boolean masked = false;
+        int state = 0;
+        int start = buf.readerIndex();
+        int end = buf.writerIndex();
+        for (int i = start; i < end; i++) {
+            state = current.next(state, buf.getByte(i));
+            int length = current.matchLength[state];
+            if (length > 0) {
+                for (int j = Math.max(start, i - length + 1); j <= i; j++) {
+                    buf.setByte(j, '*');
+                }
+                masked = true;
+            }
+        }
+        return masked;
+    }
+
+    public int size() {
+        return automaton.terms;
+    }
+
+    public void reload(Path file) {
+        try {
+            List<String> terms = new ArrayList<>();
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                line = line.strip();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    terms.add(line);
+                }
+            }
+            automaton = new Automaton(terms);
+            System.out.printf("Word filter loaded %d terms from %s%n", terms.size(), file);
+        } catch (IOException e) {
+            e.printStackTrace(); // keep the previous dictionary
+        }
+    }
+
+    private void watch(Path file) {
+        try (WatchService service = file.getFileSystem().newWatchService()) {
+            file.getParent().register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            while (true) {
+                WatchKey key = service.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    changed |= file.getFileName().equals(event.context());
+                }
+                key.reset();
+                if (changed && Files.isRegularFile(file)) {
+                    reload(file);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // shutting down
+        }
+    }
+
+    /**
+     * Deterministic automaton over byte classes: only bytes that occur in some term get a class
+     * of their own, all the others share class 0, which keeps the table small at 10k terms.
+     */
+    private static class Automaton {
+
+        private final int[] classOf = new int[256];
+        private final int classes;
+        private final int[] table; // state * classes + class -> state
+        private final int[] matchLength; // longest term ending in the state, 0 if none
+        private final int terms;
+
+        Automaton(Collection<String> words) {
+            List<byte[]> patterns = new ArrayList<>();
+            int classCount = 1;
+            for (String word : words) {
+                byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+                if (bytes.length == 0) {
+                    continue;
+                }
+                for (int i = 0; i < bytes.length; i++) {
+                    bytes[i] = fold(bytes[i]);
+                    if (classOf[bytes[i] & 0xFF] == 0) {
+                        classOf[bytes[i] & 0xFF] = classCount++;
+                    }
+                }
+                patterns.add(bytes);
+            }
+            for (int c = 'A'; c <= 'Z'; c++) {
+                classOf[c] = classOf[c | 0x20];
+            }
+            classes = classCount;
+            terms = patterns.size();
+
+            // trie, -1 for a missing edge
+            int capacity = 1;
+            for (byte[] pattern : patterns) {
+                capacity += pattern.length;
+            }
+            int[] trie = new int[capacity * classes];
+            Arrays.fill(trie, -1);
+            int[] length = new int[capacity];
+            int states = 1;
+            for (byte[] pattern : patterns) {
+                int state = 0;
+                for (byte b : pattern) {
+                    int edge = state * classes + classOf[b & 0xFF];
+                    if (trie[edge] < 0) {
+                        trie[edge] = states++;
+                    }
+                    state = trie[edge];
+                }
+                length[state] = Math.max(length[state], pattern.length);
+            }
+
+            // breadth-first: failure links, missing edges point where the failure state goes
+            table = Arrays.copyOf(trie, states * classes);
+            matchLength = Arrays.copyOf(length, states);
+            int[] fail = new int[states];
+            int[] queue = new int[states];
+            int head = 0;
+            int tail = 0;
+            for (int c = 0; c < classes; c++) {
+                int child = table[c];
+                if (child < 0) {
+                    table[c] = 0;
+                } else {
+                    fail[child] = 0;
+                    queue[tail++] = child;
+                }
+            }
+            while (head < tail) {
+                int state = queue[head++];
+                matchLength[state] = Math.max(matchLength[state], matchLength[fail[state]]);
+                for (int c = 0; c < classes; c++) {
+                    int edge = state * classes + c;
+                    int child = table[edge];
+                    if (child < 0) {
+                        table[edge] = table[fail[state] * classes + c];
+                    } else {
+                        fail[child] = table[fail[state] * classes + c];
+                        queue[tail++] = child;
+                    }
+                }
+            }
+        }
+
+        int next(int state, byte b) {
+            return table[state * classes + classOf[b & 0xFF]];
+        }
+
+        private static byte fold(byte b) {
+            return b >= 'A' && b <= 'Z' ? (byte) (b | 0x20) : b;
+        }
+    }
+}
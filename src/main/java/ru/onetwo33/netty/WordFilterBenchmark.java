@@ -0,0 +1,105 @@
+package ru.onetwo33.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Time and garbage per message: the old decode + String.replace per term + encode chain
+ * against the automaton masking the received bytes in place.
+ * Run with: java ru.onetwo33.netty.WordFilterBenchmark [terms...]
+ */
+public class WordFilterBenchmark {
+
+    private static final int MEASURE_MS = 2000;
+    private static final String MESSAGE = "hey everyone, lol that was the funniest thing I have seen all week, "
+            + "did you see what happened in the match yesterday? totally unexpected result tbh, see you later\n";
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) {
+        int[] counts = {1_000, 10_000};
+        if (args.length > 0) {
+            counts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                counts[i] = Integer.parseInt(args[i]);
+            }
+        }
+        System.out.printf("%8s %16s %16s %16s %16s%n", "terms", "replace ns/op", "replace B/op", "automaton ns/op", "automaton B/op");
+        for (int count : counts) {
+            run(count);
+        }
+    }
+
+    private static void run(int count) {
+        List<String> terms = terms(count);
+        byte[] message = MESSAGE.getBytes(StandardCharsets.UTF_8);
+
+        Runnable replace = () -> {
+            String msg = new String(message, StandardCharsets.UTF_8);
+            for (String term : terms) {
+                msg = msg.replace(term, "*".repeat(term.length()));
+            }
+            sink = msg.getBytes(StandardCharsets.UTF_8);
+        };
+
+        WordFilter filter = new WordFilter(terms);
+        ByteBuf buf = Unpooled.directBuffer(message.length);
+        Runnable automaton = () -> {
+            buf.clear().writeBytes(message); // what the socket read would leave in the buffer
+            filter.mask(buf);
+        };
+
+        // warm up each path before measuring it
+        measure(replace);
+        measure(automaton);
+        long[] a = measure(replace);
+        long[] b = measure(automaton);
+        System.out.printf("%8d %16d %16d %16d %16d%n", count, a[0], a[1], b[0], b[1]);
+        buf.release();
+    }
+
+    /**
+     * Runs the op for a fixed time, ns and allocated bytes per op
+     */
+    private static long[] measure(Runnable op) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        long ops = 0;
+        long allocated = threads.getThreadAllocatedBytes(id);
+        long start = System.nanoTime();
+        long deadline = start + MEASURE_MS * 1_000_000L;
+        while (System.nanoTime() < deadline) {
+            for (int i = 0; i < 100; i++) {
+                op.run();
+            }
+            ops += 100;
+        }
+        long elapsed = System.nanoTime() - start;
+        allocated = threads.getThreadAllocatedBytes(id) - allocated;
+        return new long[]{elapsed / ops, allocated / ops};
+    }
+
+    /**
+     * Random lowercase words of 4 to 10 letters, "lol" among them
+     */
+    private static List<String> terms(int count) {
+        Random random = new Random(42);
+        List<String> terms = new ArrayList<>(count);
+        terms.add("lol");
+        while (terms.size() < count) {
+            int length = 4 + random.nextInt(7);
+            StringBuilder term = new StringBuilder(length);
+            for (int i = 0; i < length; i++) {
+                term.append((char) ('a' + random.nextInt(26)));
+            }
+            terms.add(term.toString());
+        }
+        return terms;
+    }
+}
@@ -4,6 +4,8 @@ import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 
+import java.nio.charset.StandardCharsets;
+
 public class ByteBufInputHandler extends ChannelInboundHandlerAdapter {
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
@@ -18,11 +20,13 @@ public class ByteBufInputHandler extends ChannelInboundHandlerAdapter {
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
         ByteBuf buf = (ByteBuf) msg;
-        StringBuilder sb = new StringBuilder();
-        while (buf.isReadable()) {
-            sb.append((char) buf.readByte());
+        String message;
+        try {
+            message = buf.toString(StandardCharsets.UTF_8);
+        } finally {
+            buf.release(); // the string is all we pass on
         }
-        ctx.fireChannelRead(sb.toString());
+        ctx.fireChannelRead(message);
     }
 
     @Override
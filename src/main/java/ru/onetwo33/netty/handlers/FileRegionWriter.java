@@ -0,0 +1,55 @@
+package ru.onetwo33.netty.handlers;
+
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.handler.codec.compression.ZlibEncoder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.stream.ChunkedNioFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streams file contents into the channel without copying them through the heap.
+ * Plain sockets get a {@link DefaultFileRegion} (sendfile), pipelines that transform
+ * outbound bytes (ssl, compression) get a {@link ChunkedNioFile} for {@code ChunkedWriteHandler}.
+ */
+public final class FileRegionWriter {
+
+    public static final int CHUNK_SIZE = 8 * 1024;
+
+    private FileRegionWriter() {
+    }
+
+    public static ChannelFuture write(ChannelHandlerContext ctx, Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        return write(ctx, channel, 0, channel.size());
+    }
+
+    public static ChannelFuture write(ChannelHandlerContext ctx, FileChannel channel, long offset, long length) throws IOException {
+        if (isZeroCopyAvailable(ctx.pipeline())) {
+            return ctx.write(new DefaultFileRegion(channel, offset, length));
+        }
+        return ctx.write(new ChunkedNioFile(channel, offset, length, CHUNK_SIZE));
+    }
+
+    /**
+     * Region over a part of the file, the file is opened lazily and closed when the region is written
+     */
+    public static ChannelFuture write(ChannelHandlerContext ctx, File file, long offset, long length) throws IOException {
+        if (isZeroCopyAvailable(ctx.pipeline())) {
+            return ctx.write(new DefaultFileRegion(file, offset, length));
+        }
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        return ctx.write(new ChunkedNioFile(channel, offset, length, CHUNK_SIZE));
+    }
+
+    public static boolean isZeroCopyAvailable(ChannelPipeline pipeline) {
+        return pipeline.get(SslHandler.class) == null && pipeline.get(ZlibEncoder.class) == null;
+    }
+}
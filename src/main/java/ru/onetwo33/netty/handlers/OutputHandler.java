@@ -1,18 +1,23 @@
 package ru.onetwo33.netty.handlers;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelOutboundHandlerAdapter;
 import io.netty.channel.ChannelPromise;
 
-import java.nio.charset.StandardCharsets;
-
 public class OutputHandler extends ChannelOutboundHandlerAdapter {
     @Override
     public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
-        String message = String.valueOf(msg);
-        ByteBuf buf = ctx.alloc().directBuffer();
-        buf.writeBytes(message.getBytes(StandardCharsets.UTF_8));
-        ctx.writeAndFlush(buf);
+        if (!(msg instanceof String)) {
+            // file regions and ready buffers go to the socket as is
+            ctx.write(msg, promise);
+            return;
+        }
+        String message = (String) msg;
+        // encoded straight into a pooled buffer, no intermediate byte[]
+        ByteBuf buf = ctx.alloc().ioBuffer(ByteBufUtil.utf8MaxBytes(message));
+        ByteBufUtil.writeUtf8(buf, message);
+        ctx.write(buf, promise); // flushing is up to the caller
     }
 }
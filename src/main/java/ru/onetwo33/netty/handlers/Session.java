@@ -0,0 +1,51 @@
+package ru.onetwo33.netty.handlers;
+
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+
+import java.nio.file.Path;
+
+/**
+ * State of one telnet connection, kept as a channel attribute
+ */
+public class Session {
+
+    public static final AttributeKey<Session> KEY = AttributeKey.valueOf("session");
+
+    private volatile Path currentPath;
+    private volatile String nickname;
+    private volatile String user = ""; // empty until login
+
+    public Session(Path root, String nickname) {
+        this.currentPath = root;
+        this.nickname = nickname;
+    }
+
+    public static Session of(Channel channel) {
+        return channel.attr(KEY).get();
+    }
+
+    public Path getCurrentPath() {
+        return currentPath;
+    }
+
+    public void setCurrentPath(Path currentPath) {
+        this.currentPath = currentPath;
+    }
+
+    public String getNickname() {
+        return nickname;
+    }
+
+    public void setNickname(String nickname) {
+        this.nickname = nickname;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public void setUser(String user) {
+        this.user = user;
+    }
+}
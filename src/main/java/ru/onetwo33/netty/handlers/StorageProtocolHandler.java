@@ -0,0 +1,285 @@
+package ru.onetwo33.netty.handlers;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import ru.onetwo33.server.cache.ReadCache;
+import ru.onetwo33.server.index.MetadataIndex;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Non-blocking port of the upload, download and exit commands of {@link ru.onetwo33.server.ClientHandler},
+ * same writeUTF/writeLong wire format. Any other command gets "Unknown command" and the channel is closed.
+ * Disk work runs on one storage executor per channel, which keeps the replies in request order.
+ */
+public class StorageProtocolHandler extends ByteToMessageDecoder {
+
+    private static final long HIGH_PENDING_BYTES = 4 * 1024 * 1024;
+    private static final long LOW_PENDING_BYTES = 1024 * 1024;
+
+    private enum State {
+        COMMAND, UPLOAD_HEADER, UPLOAD_DATA, DOWNLOAD_HEADER, CLOSED
+    }
+
+    private final Path root;
+    private final EventExecutorGroup storageGroup;
+
+    private EventExecutor storage;
+    private State state = State.COMMAND;
+
+    private FileChannel upload;
+    private Path uploadPath;
+    private long uploadRemaining;
+    private long pendingBytes; // guarded by the event loop
+
+    public StorageProtocolHandler(Path root, EventExecutorGroup storageGroup) {
+        this.root = root.toAbsolutePath().normalize();
+        this.storageGroup = storageGroup;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        storage = storageGroup.next();
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        System.out.println("Client accepted - " + ctx.channel().remoteAddress());
+        super.channelActive(ctx);
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+        while (in.isReadable()) {
+            switch (state) {
+                case COMMAND:
+                    String command = readUTF(in);
+                    if (command == null) {
+                        return;
+                    }
+                    if ("upload".equals(command)) {
+                        state = State.UPLOAD_HEADER;
+                    } else if ("download".equals(command)) {
+                        state = State.DOWNLOAD_HEADER;
+                    } else if ("exit".equals(command)) {
+                        state = State.CLOSED;
+                        exit(ctx);
+                        return;
+                    } else {
+                        // the arguments of a command we do not know cannot be skipped, the stream is lost
+                        System.out.println(command);
+                        state = State.CLOSED;
+                        unknown(ctx);
+                        return;
+                    }
+                    break;
+                case UPLOAD_HEADER:
+                    if (!startUpload(ctx, in)) {
+                        return;
+                    }
+                    break;
+                case UPLOAD_DATA:
+                    writeUpload(ctx, in);
+                    break;
+                case DOWNLOAD_HEADER:
+                    String filename = readUTF(in);
+                    if (filename == null) {
+                        return;
+                    }
+                    state = State.COMMAND;
+                    storage.execute(() -> download(ctx, filename));
+                    break;
+                case CLOSED:
+                    in.skipBytes(in.readableBytes());
+                    return;
+            }
+        }
+    }
+
+    private boolean startUpload(ChannelHandlerContext ctx, ByteBuf in) {
+        in.markReaderIndex();
+        String filename = readUTF(in);
+        if (filename == null || in.readableBytes() < Long.BYTES) {
+            in.resetReaderIndex();
+            return false;
+        }
+        uploadRemaining = in.readLong();
+        state = uploadRemaining > 0 ? State.UPLOAD_DATA : State.COMMAND;
+        storage.execute(() -> {
+            try {
+                uploadPath = resolve(filename);
+                upload = FileChannel.open(uploadPath,
+                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        if (uploadRemaining == 0) {
+            storage.execute(() -> finishUpload(ctx));
+        }
+        return true;
+    }
+
+    private void writeUpload(ChannelHandlerContext ctx, ByteBuf in) {
+        int length = (int) Math.min(in.readableBytes(), uploadRemaining);
+        ByteBuf chunk = in.readRetainedSlice(length);
+        uploadRemaining -= length;
+        addPending(ctx, length);
+        storage.execute(() -> {
+            try {
+                if (upload != null) {
+                    while (chunk.isReadable()) {
+                        chunk.readBytes(upload, chunk.readableBytes());
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                closeUpload();
+            } finally {
+                chunk.release();
+                ctx.executor().execute(() -> addPending(ctx, -length));
+            }
+        });
+        if (uploadRemaining == 0) {
+            state = State.COMMAND;
+            storage.execute(() -> finishUpload(ctx));
+        }
+    }
+
+    /**
+     * Stops reading from the socket while the disk is behind
+     */
+    private void addPending(ChannelHandlerContext ctx, long delta) {
+        pendingBytes += delta;
+        if (pendingBytes > HIGH_PENDING_BYTES) {
+            ctx.channel().config().setAutoRead(false);
+        } else if (pendingBytes < LOW_PENDING_BYTES && !ctx.channel().config().isAutoRead()) {
+            ctx.channel().config().setAutoRead(true);
+        }
+    }
+
+    private void finishUpload(ChannelHandlerContext ctx) {
+        boolean ok = upload != null;
+        closeUpload();
+        writeUTF(ctx, ok ? "OK" : "WRONG");
+        ctx.flush();
+    }
+
+    private void download(ChannelHandlerContext ctx, String filename) {
+        try {
+            File file = resolve(filename).toFile();
+            if (!file.isFile()) {
+                writeUTF(ctx, "File not found");
+                ctx.flush();
+                return;
+            }
+            ByteBuffer cached = ReadCache.shared().get(file.toPath());
+            long length = cached != null ? cached.remaining() : file.length();
+            ByteBuf header = ctx.alloc().ioBuffer();
+            ByteBufOutputStream out = new ByteBufOutputStream(header);
+            out.writeUTF("File found");
+            out.writeLong(length);
+            ctx.write(header);
+            if (cached != null) {
+                ctx.write(Unpooled.wrappedBuffer(cached)); // no copy out of the cache
+            } else if (length > 0) {
+                FileRegionWriter.write(ctx, file, 0, length);
+            }
+            ctx.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+            writeUTF(ctx, "File not found");
+            ctx.flush();
+        }
+    }
+
+    private void exit(ChannelHandlerContext ctx) {
+        storage.execute(() -> {
+            writeUTF(ctx, "DONE").addListener(ChannelFutureListener.CLOSE);
+            ctx.flush();
+            System.out.printf("Client %s disconnected correcly\n", ctx.channel().remoteAddress());
+        });
+    }
+
+    private void unknown(ChannelHandlerContext ctx) {
+        storage.execute(() -> {
+            writeUTF(ctx, "Unknown command").addListener(ChannelFutureListener.CLOSE);
+            ctx.flush();
+        });
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        storage.execute(this::closeUpload);
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        cause.printStackTrace();
+        ctx.close();
+    }
+
+    private void closeUpload() {
+        if (upload == null) {
+            return;
+        }
+        try {
+            upload.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        ReadCache.shared().invalidate(uploadPath);
+        MetadataIndex.shared().refresh(uploadPath);
+        upload = null;
+        uploadPath = null;
+    }
+
+    private Path resolve(String filename) throws IOException {
+        Path path = root.resolve(filename).normalize();
+        if (!path.startsWith(root)) {
+            throw new AccessDeniedException(filename);
+        }
+        return path;
+    }
+
+    /**
+     * DataInput.readUTF, or null while the string is not fully received
+     */
+    private static String readUTF(ByteBuf in) {
+        if (in.readableBytes() < 2 || in.readableBytes() < 2 + in.getUnsignedShort(in.readerIndex())) {
+            return null;
+        }
+        try {
+            return new ByteBufInputStream(in).readUTF();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static ChannelFuture writeUTF(ChannelHandlerContext ctx, String message) {
+        ByteBuf buf = ctx.alloc().ioBuffer();
+        try {
+            new ByteBufOutputStream(buf).writeUTF(message);
+        } catch (IOException e) {
+            buf.release();
+            throw new IllegalStateException(e);
+        }
+        return ctx.write(buf);
+    }
+}
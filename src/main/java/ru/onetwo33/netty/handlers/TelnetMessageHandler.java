@@ -1,48 +1,98 @@
 package ru.onetwo33.netty.handlers;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import ru.onetwo33.common.ParallelCopy;
+import ru.onetwo33.server.cache.ReadCache;
+import ru.onetwo33.server.db.MetaStore;
+import ru.onetwo33.server.index.Listing;
+import ru.onetwo33.server.index.MetadataIndex;
+import ru.onetwo33.server.store.ChunkStore;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.net.SocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.nio.file.*;
-import java.nio.file.attribute.BasicFileAttributes;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 
 public class TelnetMessageHandler extends SimpleChannelInboundHandler<String> {
 
-    public static final String LS_COMMAND = "\tls - view all files and directories\n";
+    public static final String LS_COMMAND = "\tls [-l] [-s name|size|date] [-r] [page] - view files and directories, 100 per page\n";
     public static final String MKDIR_COMMAND = "\tmkdir [dirname] - create directory\n";
     public static final String CHANGE_NICKNAME = "\tnick [nickname] - change nickname\n";
     public static final String TOUCH_COMMAND = "\ttouch [filename] - create file\n";
     public static final String CD_COMMAND = "\tcd [path] - move on catalog\n";
     public static final String RM_COMMAND = "\trm [filename | dirname] - delete file or directory (empty)\n";
-    public static final String COPY_COMMAND = "\tcopy [src] [target] - copy file or directory\n";
+    public static final String COPY_COMMAND = "\tcopy [-l] [src] [target] - copy file or directory, -l hard links the files\n";
     public static final String CAT_COMMAND = "\tcat [filename] - read file\n";
+    public static final String FIND_COMMAND = "\tfind [name] [-type f|d] [-size +N|-N] [-newer date] [-older date] [-page N] - search files below the current directory\n";
+    public static final String DOWNLOAD_COMMAND = "\tdownload [filename] - download file (SIZE header + raw bytes)\n";
+    public static final String REGISTER_COMMAND = "\tregister [user] [password] - create an account\n";
+    public static final String LOGIN_COMMAND = "\tlogin [user] [password] - sign in, new files are owned by the user\n";
+    public static final String CANCEL_COMMAND = "\tcancel - stop the running copy\n";
+    public static final String CACHE_COMMAND = "\tcache - read cache statistics\n";
+
+    // fixed replies are encoded once and shared by every channel
+    private static final ByteBuf HELP = cached(LS_COMMAND + MKDIR_COMMAND + CHANGE_NICKNAME + TOUCH_COMMAND
+            + CD_COMMAND + RM_COMMAND + COPY_COMMAND + CAT_COMMAND + FIND_COMMAND + DOWNLOAD_COMMAND
+            + REGISTER_COMMAND + LOGIN_COMMAND + CANCEL_COMMAND + CACHE_COMMAND);
+    private static final ByteBuf OK = cached("OK\n");
 
     private static final String ROOT_NOTIFICATION = "You are already in the root directory\n\n";
     private static final String DIRECTORY_DOESNT_EXIST = "Directory %s doesn't exist\n\n";
     private static final String ROOT_PATH = "server";
 
-    private Path currentPath = Path.of("server");
+    private final EventExecutorGroup storageGroup;
+
+    private EventExecutor storage;
+    private volatile ParallelCopy copy;
 
-    private Map<SocketAddress, String> clients = new HashMap<>();
+    public TelnetMessageHandler(EventExecutorGroup storageGroup) {
+        this.storageGroup = storageGroup;
+    }
+
+    /**
+     * One storage executor per channel keeps the replies in command order
+     */
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        storage = storageGroup.next();
+    }
 
     @Override
     public void channelRegistered(ChannelHandlerContext ctx) {
-        ctx.writeAndFlush("Hello user!\n");
+        ctx.channel().attr(Session.KEY).set(new Session(Path.of(ROOT_PATH), String.valueOf(ctx.channel().remoteAddress())));
+        ctx.write("Hello user!\n");
         ctx.writeAndFlush("Enter --help for support info\n");
     }
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, String msg) {
-        String nickname = "";
+        if ("cancel".equals(msg.trim())) {
+            cancel(ctx);
+            return;
+        }
+        try {
+            storage.execute(() -> {
+                handleCommand(ctx, msg);
+                ctx.flush();
+            });
+        } catch (RejectedExecutionException e) {
+            sendMessage("Server is busy, try again later\n", ctx);
+            sendName(ctx);
+        }
+    }
 
+    /**
+     * Runs on the storage executor, the writes are handed over to the event loop
+     */
+    private void handleCommand(ChannelHandlerContext ctx, String msg) {
         if (!msg.isEmpty()) {
 
             String command = msg
@@ -52,16 +102,9 @@ public class TelnetMessageHandler extends SimpleChannelInboundHandler<String> {
             String[] cmds = command.split(" ");
 
             if ("--help".equals(cmds[0])) {
-                sendMessage(LS_COMMAND, ctx);
-                sendMessage(MKDIR_COMMAND, ctx);
-                sendMessage(CHANGE_NICKNAME, ctx);
-                sendMessage(TOUCH_COMMAND, ctx);
-                sendMessage(CD_COMMAND, ctx);
-                sendMessage(RM_COMMAND, ctx);
-                sendMessage(COPY_COMMAND, ctx);
-                sendMessage(CAT_COMMAND, ctx);
+                sendMessage(HELP, ctx);
             } else if ("ls".equals(cmds[0])) {
-                sendMessage(getFileList().concat("\n"), ctx);
+                sendMessage(getFileList(ctx, cmds).concat("\n"), ctx);
             } else if ("touch".equals(cmds[0])) {
                 createFile(cmds[1], ctx);
             } else if ("mkdir".equals(cmds[0])) {
@@ -71,89 +114,142 @@ public class TelnetMessageHandler extends SimpleChannelInboundHandler<String> {
             } else if ("rm".equals(cmds[0])) {
                 removeFile(cmds[1], ctx);
             } else if ("copy".equals(cmds[0])) {
-                copyFile(cmds[1], cmds[2], ctx);
+                boolean link = "-l".equals(cmds[1]);
+                if (copyFile(cmds[link ? 2 : 1], cmds[link ? 3 : 2], link, ctx)) {
+                    return; // the prompt follows the copy result
+                }
+            } else if ("find".equals(cmds[0])) {
+                sendMessage(Listing.find(MetadataIndex.shared(), currentPath(ctx), cmds).concat("\n"), ctx);
             } else if ("cat".equals(cmds[0])) {
                 readFile(cmds[1], ctx);
+            } else if ("download".equals(cmds[0])) {
+                downloadFile(cmds[1], ctx);
+            } else if ("cache".equals(cmds[0])) {
+                sendMessage(ReadCache.shared().stats().concat("\n"), ctx);
             } else if ("nick".equals(cmds[0])) {
-                nickname = changeName(ctx, cmds);
+                changeName(ctx, cmds);
+            } else if ("register".equals(cmds[0])) {
+                register(ctx, cmds);
+            } else if ("login".equals(cmds[0])) {
+                login(ctx, cmds);
             } else if ("exit".equals(cmds[0])) {
                 System.out.println("Client logged out. IP: " + ctx.channel().remoteAddress());
-                ctx.channel().close();
+                // let the replies already written for this read reach the client first
+                ctx.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+                return;
             }
         }
-        sendName(ctx, nickname);
+        sendName(ctx);
     }
 
-    private void sendMessage(String message, ChannelHandlerContext ctx) {
-        ctx.writeAndFlush(message);
+    /**
+     * Replies written on the event loop are flushed once per read here
+     */
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        ctx.flush();
     }
 
-    private void sendName(ChannelHandlerContext ctx, String nickname) {
-        if (nickname.isEmpty()) {
-            nickname = clients.getOrDefault(ctx.channel().remoteAddress(), ctx.channel().remoteAddress().toString());
+    private void cancel(ChannelHandlerContext ctx) {
+        ParallelCopy running = copy;
+        if (running != null) {
+            running.cancel();
+            sendMessage("Cancelling copy\n", ctx);
+        } else {
+            sendMessage("Nothing to cancel\n", ctx);
+            sendName(ctx);
         }
-        String currentPathString = currentPath.toString().replace("server", "~");
+    }
+
+    private void sendMessage(String message, ChannelHandlerContext ctx) {
+        ctx.write(message);
+    }
 
-        ctx.writeAndFlush(nickname.concat(">:").concat(currentPathString).concat("$ "));
+    private void sendMessage(ByteBuf cached, ChannelHandlerContext ctx) {
+        ctx.write(cached.duplicate());
     }
 
-    private String changeName(ChannelHandlerContext ctx, String[] cmds) {
-        String nickname;
-        nickname = cmds[1];
-        clients.put(ctx.channel().remoteAddress(), nickname);
+    private static ByteBuf cached(String message) {
+        ByteBuf buf = Unpooled.directBuffer(ByteBufUtil.utf8Bytes(message));
+        ByteBufUtil.writeUtf8(buf, message);
+        return Unpooled.unreleasableBuffer(buf.asReadOnly());
+    }
+
+    private void sendName(ChannelHandlerContext ctx) {
+        Session session = Session.of(ctx.channel());
+        String currentPathString = session.getCurrentPath().toString().replace("server", "~");
+
+        ctx.write(session.getNickname().concat(">:").concat(currentPathString).concat("$ "));
+    }
+
+    private void changeName(ChannelHandlerContext ctx, String[] cmds) {
+        String nickname = cmds[1];
+        Session.of(ctx.channel()).setNickname(nickname);
         System.out.println("Client - " + ctx.channel().remoteAddress().toString() + " changed nickname on " + nickname);
-        System.out.println(clients);
-        return nickname;
     }
 
-    private String getFileList() {
-        return String.join(" ", new File(currentPath.toString()).list());
+    private String getFileList(ChannelHandlerContext ctx, String[] cmds) {
+        return Listing.ls(MetadataIndex.shared(), currentPath(ctx), cmds);
+    }
+
+    private Path currentPath(ChannelHandlerContext ctx) {
+        return Session.of(ctx.channel()).getCurrentPath();
     }
 
     private void createFile(String filename, ChannelHandlerContext ctx) {
-        Path path = Path.of(currentPath.toString(), filename);
+        Path path = Path.of(currentPath(ctx).toString(), filename);
         try {
-            if (!Files.exists(path)) {
+            if (!MetaStore.shared().exists(storeName(path))) {
                 Files.createFile(path);
-                sendMessage("OK\n", ctx);
+                MetadataIndex.shared().refresh(path);
+                own(path, ctx);
+                sendMessage(OK, ctx);
             } else {
                 sendMessage("File already exists\n", ctx);
             }
+        } catch (FileAlreadyExistsException e) {
+            sendMessage("File already exists\n", ctx);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
     private void createDirectory(String dirname, ChannelHandlerContext ctx) {
-        Path path = Path.of(currentPath.toString(), dirname);
+        Path path = Path.of(currentPath(ctx).toString(), dirname);
         try {
-            if (!Files.exists(path)) {
+            if (!MetaStore.shared().exists(storeName(path))) {
                 Files.createDirectory(path);
-                sendMessage("OK\n", ctx);
+                MetadataIndex.shared().refresh(path);
+                own(path, ctx);
+                sendMessage(OK, ctx);
             } else {
                 sendMessage("File already exists\n", ctx);
             }
+        } catch (FileAlreadyExistsException e) {
+            sendMessage("File already exists\n", ctx);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
     private void replacePosition(ChannelHandlerContext ctx, String neededPathString) {
+        Session session = Session.of(ctx.channel());
+        Path currentPath = session.getCurrentPath();
         Path tempPath = Path.of(currentPath.toString(), neededPathString);
         if ("..".equals(neededPathString)) {
             tempPath = currentPath.getParent(); // server/..
             if (tempPath == null || !tempPath.toString().startsWith("server")) {
                 sendMessage(ROOT_NOTIFICATION, ctx);
             } else {
-                currentPath = tempPath;
+                session.setCurrentPath(tempPath);
             }
         } else if ("~".equals(neededPathString)) {
-            currentPath = Path.of(ROOT_PATH);
+            session.setCurrentPath(Path.of(ROOT_PATH));
         } else if (".".equals(neededPathString)) {
             // nothing to do
         } else {
-            if (tempPath.toFile().exists()) {
-                currentPath = tempPath;
+            if (MetaStore.shared().isDirectory(storeName(tempPath))) {
+                session.setCurrentPath(tempPath.normalize());
             } else {
                 sendMessage(String.format(DIRECTORY_DOESNT_EXIST, neededPathString), ctx);
             }
@@ -161,14 +257,22 @@ public class TelnetMessageHandler extends SimpleChannelInboundHandler<String> {
     }
 
     private void removeFile(String filename, ChannelHandlerContext ctx) {
-        Path path = Path.of(currentPath.toString(), filename);
+        Path path = Path.of(currentPath(ctx).toString(), filename);
         try {
-            if (Files.exists(path)) {
-                Files.delete(path);
-                sendMessage("OK\n", ctx);
-            } else {
+            MetaStore.FileRecord record = MetaStore.shared().get(storeName(path));
+            if (record == null) {
                 sendMessage("File not found\n", ctx);
+            } else if (!record.getOwner().isEmpty() && !record.getOwner().equals(Session.of(ctx.channel()).getUser())) {
+                sendMessage(String.format("%s belongs to %s\n", filename, record.getOwner()), ctx);
+            } else {
+                Files.delete(path);
+                ReadCache.shared().invalidate(path);
+                MetadataIndex.shared().refresh(path);
+                sendMessage(OK, ctx);
             }
+        } catch (NoSuchFileException e) {
+            MetadataIndex.shared().refresh(path);
+            sendMessage("File not found\n", ctx);
         } catch (DirectoryNotEmptyException e) {
             sendMessage(String.format("Directory %s not empty\n", filename), ctx);
         } catch (IOException e) {
@@ -176,66 +280,122 @@ public class TelnetMessageHandler extends SimpleChannelInboundHandler<String> {
         }
     }
 
-    private void copyFile(String source, String target, ChannelHandlerContext ctx) {
-        Path pathSource = Path.of(currentPath.toString(), source);
-        Path pathTarget = Path.of(currentPath.toString(), target);
-        if (Files.isDirectory(pathSource)) {
-            try {
-                Files.walkFileTree(pathSource, new SimpleFileVisitor<Path>() {
-                    @Override
-                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                        Path newdir = pathTarget.resolve(pathSource.relativize(dir));
-                        if (Files.exists(newdir)) {
-                            return FileVisitResult.CONTINUE;
-                        }
-                        System.out.println("created dir: " + dir.toString());
-                        Files.createDirectory(newdir);
-                        return FileVisitResult.CONTINUE;
-                    }
-
-                    @Override
-                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                        System.out.println("copy file: " + file.toString());
-                        Path newfile = pathTarget.resolve(pathSource.relativize(file));
-                        Files.copy(file, newfile);
-                        return FileVisitResult.CONTINUE;
-                    }
-                });
-            } catch (FileAlreadyExistsException e) {
-                sendMessage("File already exists\n", ctx);
-            } catch(IOException e){
-                e.printStackTrace();
+    /**
+     * Starts the copy on the copy pool so the storage executor stays free,
+     * true when the result and the prompt are sent later
+     */
+    private boolean copyFile(String source, String target, boolean link, ChannelHandlerContext ctx) {
+        Path pathSource = Path.of(currentPath(ctx).toString(), source);
+        Path pathTarget = Path.of(currentPath(ctx).toString(), target);
+        try {
+            // deduplicated files are copied by cloning their manifest, a real file of the same name wins
+            if (!Files.exists(pathSource) && ChunkStore.shared().cloneManifest(storeName(pathSource), storeName(pathTarget))) {
+                sendMessage(OK, ctx);
+                return false;
             }
-        } else {
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (copy != null) {
+            sendMessage("Another copy is running\n", ctx);
+            return false;
+        }
+        ParallelCopy running = new ParallelCopy(link, (files, bytes) ->
+                ctx.writeAndFlush(String.format("copying: %d files, %d KB\n", files, bytes / 1024)));
+        copy = running;
+        ParallelCopy.POOL.execute(() -> {
+            String result = "";
             try {
-                Files.copy(pathSource, pathTarget);
+                running.copy(pathSource, pathTarget);
+                if (running.isCancelled()) {
+                    result = String.format("Copy cancelled after %d files, %d KB\n", running.getFiles(), running.getBytes() / 1024);
+                }
             } catch (FileAlreadyExistsException e) {
-                sendMessage("File already exists\n", ctx);
+                result = "File already exists\n";
             } catch (IOException e) {
                 e.printStackTrace();
             }
+            ReadCache.shared().invalidateTree(pathTarget);
+            MetadataIndex.shared().rescan(pathTarget);
+            own(pathTarget, ctx);
+            copy = null;
+            String reply = result;
+            ctx.executor().execute(() -> {
+                if (!reply.isEmpty()) {
+                    sendMessage(reply, ctx);
+                }
+                sendName(ctx);
+                ctx.flush();
+            });
+        });
+        return true;
+    }
+
+    private String storeName(Path path) {
+        return Path.of(ROOT_PATH).relativize(path.normalize()).toString();
+    }
+
+    /**
+     * Gives the path and everything below it to the logged in user
+     */
+    private void own(Path path, ChannelHandlerContext ctx) {
+        String user = Session.of(ctx.channel()).getUser();
+        if (user.isEmpty()) {
+            return;
+        }
+        String name = storeName(path);
+        MetaStore.shared().setOwner(name, user);
+        for (String child : MetaStore.shared().paths(name)) {
+            MetaStore.shared().setOwner(child, user);
+        }
+    }
+
+    private void register(ChannelHandlerContext ctx, String[] cmds) {
+        if (cmds.length < 3) {
+            sendMessage("Usage: register [user] [password]\n", ctx);
+        } else if (MetaStore.shared().addUser(cmds[1], cmds[2]).join()) {
+            sendMessage(OK, ctx);
+        } else {
+            sendMessage(String.format("User %s already exists\n", cmds[1]), ctx);
+        }
+    }
+
+    private void login(ChannelHandlerContext ctx, String[] cmds) {
+        if (cmds.length < 3 || !MetaStore.shared().authenticate(cmds[1], cmds[2])) {
+            sendMessage("Wrong user or password\n", ctx);
+            return;
         }
+        Session session = Session.of(ctx.channel());
+        session.setUser(cmds[1]);
+        session.setNickname(cmds[1]);
+        System.out.println("Client - " + ctx.channel().remoteAddress() + " logged in as " + cmds[1]);
+        sendMessage(OK, ctx);
     }
 
     private void readFile(String filename, ChannelHandlerContext ctx) {
-        Path path = Path.of(currentPath.toString(), filename);
+        Path path = Path.of(currentPath(ctx).toString(), filename);
+        MetaStore.FileRecord record = MetaStore.shared().get(storeName(path));
         try {
-            if (Files.isDirectory(path)) {
+            if (record == null) {
+                sendMessage("File not found\n", ctx);
+            } else if (record.isDirectory()) {
                 sendMessage(String.format("%s is directory\n", filename), ctx);
-            } else if (Files.exists(path)) {
-                FileChannel channel = new RandomAccessFile(path.toString(), "r").getChannel();
-                ByteBuffer buffer = ByteBuffer.allocate(512);
-                int bytesRead = channel.read(buffer);
-                while (bytesRead != -1) {
-                    buffer.flip();
-                    while (buffer.hasRemaining()) {
-                        sendMessage(String.valueOf((char) buffer.get()), ctx);
-                    }
-                    buffer.clear();
-                    bytesRead = channel.read(buffer);
-                }
+            } else {
+                streamFile(path, record, ctx);
                 sendMessage("\n", ctx);
-                channel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void downloadFile(String filename, ChannelHandlerContext ctx) {
+        Path path = Path.of(currentPath(ctx).toString(), filename);
+        MetaStore.FileRecord record = MetaStore.shared().get(storeName(path));
+        try {
+            if (record != null && !record.isDirectory()) {
+                sendMessage(String.format("SIZE %d\n", record.getSize()), ctx);
+                streamFile(path, record, ctx);
             } else {
                 sendMessage("File not found\n", ctx);
             }
@@ -243,4 +403,29 @@ public class TelnetMessageHandler extends SimpleChannelInboundHandler<String> {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Small hot files are written straight from the read cache, the rest goes to the socket
+     * as a region; inbound commands wait until it is written.
+     * Size and mtime come from the metadata store, so the file is not stat'ed again.
+     */
+    private void streamFile(Path path, MetaStore.FileRecord record, ChannelHandlerContext ctx) throws IOException {
+        long length = record.getSize();
+        if (length == 0) {
+            return;
+        }
+        ByteBuffer cached = ReadCache.shared().get(path, length, record.getModified());
+        if (cached != null) {
+            ctx.write(Unpooled.wrappedBuffer(cached)); // wraps the direct buffer, no copy
+            return;
+        }
+        ctx.channel().config().setAutoRead(false);
+        FileRegionWriter.write(ctx, path.toFile(), 0, length).addListener(future -> {
+            if (!future.isSuccess()) {
+                future.cause().printStackTrace();
+                ctx.close();
+            }
+            ctx.channel().config().setAutoRead(true);
+        });
+    }
 }
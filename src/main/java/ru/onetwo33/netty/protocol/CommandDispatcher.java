@@ -0,0 +1,83 @@
+package ru.onetwo33.netty.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Path;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Routes decoded frames to command handlers by opcode.
+ * One dispatcher per channel, so handlers may keep per-connection state.
+ */
+public class CommandDispatcher extends SimpleChannelInboundHandler<Frame> {
+
+    private final Path root;
+    private final Map<Opcode, CommandHandler> handlers = new EnumMap<>(Opcode.class);
+
+    public CommandDispatcher(Path root) {
+        this.root = root.toAbsolutePath().normalize();
+        UploadCommand upload = new UploadCommand(this);
+        handlers.put(Opcode.LIST, new ListCommand(this));
+        handlers.put(Opcode.UPLOAD_START, upload);
+        handlers.put(Opcode.UPLOAD_DATA, upload);
+        handlers.put(Opcode.UPLOAD_END, upload);
+        handlers.put(Opcode.DOWNLOAD, new DownloadCommand(this));
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, Frame frame) throws Exception {
+        CommandHandler handler = handlers.get(frame.opcode());
+        if (handler == null) {
+            sendError(ctx, frame.requestId(), "Unsupported command " + frame.opcode());
+            return;
+        }
+        try {
+            handler.handle(ctx, frame);
+        } catch (IOException e) {
+            sendError(ctx, frame.requestId(), e.toString());
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        handlers.values().forEach(CommandHandler::channelClosed);
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        cause.printStackTrace();
+        ctx.close();
+    }
+
+    /**
+     * Resolves a client supplied name inside the storage root
+     */
+    public Path resolve(String name) throws IOException {
+        Path path = root.resolve(name).normalize();
+        if (!path.startsWith(root)) {
+            throw new AccessDeniedException(name);
+        }
+        return path;
+    }
+
+    public Path root() {
+        return root;
+    }
+
+    public static ChannelFuture sendOk(ChannelHandlerContext ctx, int requestId, ByteBuf payload) {
+        return ctx.writeAndFlush(new Frame(Opcode.OK, requestId, payload));
+    }
+
+    public static ChannelFuture sendError(ChannelHandlerContext ctx, int requestId, String message) {
+        ByteBuf payload = ctx.alloc().ioBuffer();
+        Frame.writeString(payload, message);
+        return ctx.writeAndFlush(new Frame(Opcode.ERROR, requestId, payload));
+    }
+}
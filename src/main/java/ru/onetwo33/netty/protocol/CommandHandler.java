@@ -0,0 +1,14 @@
+package ru.onetwo33.netty.protocol;
+
+import io.netty.channel.ChannelHandlerContext;
+
+public interface CommandHandler {
+
+    void handle(ChannelHandlerContext ctx, Frame frame) throws Exception;
+
+    /**
+     * Connection is gone, release per-request state
+     */
+    default void channelClosed() {
+    }
+}
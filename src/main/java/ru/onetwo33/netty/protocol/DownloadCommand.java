@@ -0,0 +1,82 @@
+package ru.onetwo33.netty.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import ru.onetwo33.netty.handlers.FileRegionWriter;
+import ru.onetwo33.server.cache.ReadCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * DOWNLOAD [name] -> OK [long size], DATA [bytes]*, END
+ * Each DATA frame body is a file region, the next one is written when the previous is flushed.
+ * Files in the read cache go out in one flush as slices of the cached buffer.
+ */
+public class DownloadCommand implements CommandHandler {
+
+    public static final int DATA_FRAME_SIZE = 1024 * 1024;
+
+    private final CommandDispatcher dispatcher;
+
+    public DownloadCommand(CommandDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    @Override
+    public void handle(ChannelHandlerContext ctx, Frame frame) throws IOException {
+        Path path = dispatcher.resolve(Frame.readString(frame.payload()));
+        if (!Files.isRegularFile(path)) {
+            CommandDispatcher.sendError(ctx, frame.requestId(), "File not found");
+            return;
+        }
+        ByteBuffer cached = ReadCache.shared().get(path);
+        long size = cached != null ? cached.remaining() : Files.size(path);
+        CommandDispatcher.sendOk(ctx, frame.requestId(), ctx.alloc().ioBuffer(8).writeLong(size));
+        if (cached != null) {
+            sendCached(ctx, frame.requestId(), Unpooled.wrappedBuffer(cached));
+        } else {
+            sendData(ctx, frame.requestId(), path.toFile(), 0, size);
+        }
+    }
+
+    private void sendCached(ChannelHandlerContext ctx, int requestId, ByteBuf data) {
+        while (data.isReadable()) {
+            int length = Math.min(DATA_FRAME_SIZE, data.readableBytes());
+            ctx.write(FrameEncoder.header(ctx, Opcode.DATA, requestId, length));
+            ctx.write(data.readRetainedSlice(length));
+        }
+        data.release();
+        ctx.writeAndFlush(new Frame(Opcode.END, requestId));
+    }
+
+    private void sendData(ChannelHandlerContext ctx, int requestId, File file, long position, long size) {
+        if (!ctx.channel().isActive()) {
+            return;
+        }
+        if (position >= size) {
+            ctx.writeAndFlush(new Frame(Opcode.END, requestId));
+            return;
+        }
+        long length = Math.min(DATA_FRAME_SIZE, size - position);
+        ctx.write(FrameEncoder.header(ctx, Opcode.DATA, requestId, length));
+        try {
+            FileRegionWriter.write(ctx, file, position, length).addListener(future -> {
+                if (future.isSuccess()) {
+                    sendData(ctx, requestId, file, position + length, size);
+                } else {
+                    future.cause().printStackTrace();
+                    ctx.close();
+                }
+            });
+            ctx.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package ru.onetwo33.netty.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.DefaultByteBufHolder;
+import io.netty.buffer.Unpooled;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Wire format: [int length][byte opcode][int requestId][payload]
+ * length covers opcode, requestId and payload
+ */
+public class Frame extends DefaultByteBufHolder {
+
+    public static final int HEADER_SIZE = 1 + 4;
+
+    private final Opcode opcode;
+    private final int requestId;
+
+    public Frame(Opcode opcode, int requestId, ByteBuf payload) {
+        super(payload);
+        this.opcode = opcode;
+        this.requestId = requestId;
+    }
+
+    public Frame(Opcode opcode, int requestId) {
+        this(opcode, requestId, Unpooled.EMPTY_BUFFER);
+    }
+
+    public Opcode opcode() {
+        return opcode;
+    }
+
+    public int requestId() {
+        return requestId;
+    }
+
+    public ByteBuf payload() {
+        return content();
+    }
+
+    @Override
+    public Frame replace(ByteBuf content) {
+        return new Frame(opcode, requestId, content);
+    }
+
+    @Override
+    public String toString() {
+        return "Frame{" + opcode + ", id=" + requestId + ", " + content().readableBytes() + " bytes}";
+    }
+
+    /**
+     * Strings in payloads are [short length][utf-8 bytes]
+     */
+    public static void writeString(ByteBuf buf, String value) {
+        int lengthIndex = buf.writerIndex();
+        buf.writeShort(0);
+        int length = ByteBufUtil.writeUtf8(buf, value);
+        buf.setShort(lengthIndex, length);
+    }
+
+    public static String readString(ByteBuf buf) {
+        int length = buf.readUnsignedShort();
+        String value = buf.toString(buf.readerIndex(), length, StandardCharsets.UTF_8);
+        buf.skipBytes(length);
+        return value;
+    }
+}
@@ -0,0 +1,32 @@
+package ru.onetwo33.netty.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+
+public class FrameDecoder extends LengthFieldBasedFrameDecoder {
+
+    // the decoder counts the length field itself, a full DATA frame must pass
+    public static final int MAX_FRAME_LENGTH = 4 + Frame.HEADER_SIZE + DownloadCommand.DATA_FRAME_SIZE;
+
+    public FrameDecoder() {
+        super(MAX_FRAME_LENGTH, 0, 4, 0, 4);
+    }
+
+    @Override
+    protected Object decode(ChannelHandlerContext ctx, ByteBuf in) throws Exception {
+        ByteBuf frame = (ByteBuf) super.decode(ctx, in);
+        if (frame == null) {
+            return null;
+        }
+        try {
+            Opcode opcode = Opcode.valueOf(frame.readByte());
+            int requestId = frame.readInt();
+            // the rest of the retained slice is the payload, no copy
+            return new Frame(opcode, requestId, frame);
+        } catch (RuntimeException e) {
+            frame.release();
+            throw e;
+        }
+    }
+}
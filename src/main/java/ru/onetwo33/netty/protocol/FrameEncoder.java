@@ -0,0 +1,35 @@
+package ru.onetwo33.netty.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageEncoder;
+
+import java.util.List;
+
+/**
+ * Writes the header into a small pooled buffer and passes the payload on untouched
+ */
+@ChannelHandler.Sharable
+public class FrameEncoder extends MessageToMessageEncoder<Frame> {
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, Frame frame, List<Object> out) {
+        ByteBuf payload = frame.payload();
+        out.add(header(ctx, frame.opcode(), frame.requestId(), payload.readableBytes()));
+        if (payload.isReadable()) {
+            out.add(payload.retain());
+        }
+    }
+
+    /**
+     * Header for a frame whose payload is written separately, e.g. as a file region
+     */
+    public static ByteBuf header(ChannelHandlerContext ctx, Opcode opcode, int requestId, long payloadLength) {
+        ByteBuf header = ctx.alloc().ioBuffer(4 + Frame.HEADER_SIZE);
+        header.writeInt((int) (Frame.HEADER_SIZE + payloadLength));
+        header.writeByte(opcode.code());
+        header.writeInt(requestId);
+        return header;
+    }
+}
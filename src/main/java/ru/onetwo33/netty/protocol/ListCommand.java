@@ -0,0 +1,49 @@
+package ru.onetwo33.netty.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * LIST [path] -> OK [int count]([byte dir][long size][name])*
+ */
+public class ListCommand implements CommandHandler {
+
+    private final CommandDispatcher dispatcher;
+
+    public ListCommand(CommandDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    @Override
+    public void handle(ChannelHandlerContext ctx, Frame frame) throws IOException {
+        Path dir = dispatcher.resolve(Frame.readString(frame.payload()));
+        if (!Files.isDirectory(dir)) {
+            CommandDispatcher.sendError(ctx, frame.requestId(), "Directory not found");
+            return;
+        }
+        ByteBuf payload = ctx.alloc().ioBuffer();
+        int countIndex = payload.writerIndex();
+        payload.writeInt(0);
+        int count = 0;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                BasicFileAttributes attrs = Files.readAttributes(entry, BasicFileAttributes.class);
+                payload.writeBoolean(attrs.isDirectory());
+                payload.writeLong(attrs.size());
+                Frame.writeString(payload, entry.getFileName().toString());
+                count++;
+            }
+        } catch (IOException e) {
+            payload.release();
+            throw e;
+        }
+        payload.setInt(countIndex, count);
+        CommandDispatcher.sendOk(ctx, frame.requestId(), payload);
+    }
+}
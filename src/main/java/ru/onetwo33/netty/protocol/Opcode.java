@@ -0,0 +1,41 @@
+package ru.onetwo33.netty.protocol;
+
+/**
+ * Frame opcodes: requests from the client and responses from the server
+ */
+public enum Opcode {
+    LIST(1),
+    UPLOAD_START(2),
+    UPLOAD_DATA(3),
+    UPLOAD_END(4),
+    DOWNLOAD(5),
+    DATA(6),
+    END(7),
+    OK(8),
+    ERROR(9);
+
+    private static final Opcode[] BY_CODE = new Opcode[16];
+
+    static {
+        for (Opcode opcode : values()) {
+            BY_CODE[opcode.code] = opcode;
+        }
+    }
+
+    private final byte code;
+
+    Opcode(int code) {
+        this.code = (byte) code;
+    }
+
+    public byte code() {
+        return code;
+    }
+
+    public static Opcode valueOf(byte code) {
+        if (code < 0 || code >= BY_CODE.length || BY_CODE[code] == null) {
+            throw new IllegalArgumentException("Unknown opcode: " + code);
+        }
+        return BY_CODE[code];
+    }
+}
@@ -0,0 +1,106 @@
+package ru.onetwo33.netty.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import ru.onetwo33.server.cache.ReadCache;
+import ru.onetwo33.server.index.MetadataIndex;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * UPLOAD_START [name][long size] -> OK
+ * UPLOAD_DATA [bytes]*
+ * UPLOAD_END -> OK
+ */
+public class UploadCommand implements CommandHandler {
+
+    private final CommandDispatcher dispatcher;
+    private final Map<Integer, FileChannel> uploads = new HashMap<>();
+    private final Map<Integer, Path> paths = new HashMap<>();
+
+    public UploadCommand(CommandDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    @Override
+    public void handle(ChannelHandlerContext ctx, Frame frame) throws IOException {
+        switch (frame.opcode()) {
+            case UPLOAD_START:
+                start(ctx, frame);
+                break;
+            case UPLOAD_DATA:
+                write(ctx, frame);
+                break;
+            case UPLOAD_END:
+                finish(ctx, frame);
+                break;
+            default:
+                CommandDispatcher.sendError(ctx, frame.requestId(), "Unexpected " + frame.opcode());
+        }
+    }
+
+    private void start(ChannelHandlerContext ctx, Frame frame) throws IOException {
+        ByteBuf payload = frame.payload();
+        String name = Frame.readString(payload);
+        long size = payload.readLong();
+        if (uploads.containsKey(frame.requestId())) {
+            CommandDispatcher.sendError(ctx, frame.requestId(), "Request id already in use");
+            return;
+        }
+        Path path = dispatcher.resolve(name);
+        FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        uploads.put(frame.requestId(), channel);
+        paths.put(frame.requestId(), path);
+        System.out.printf("Upload #%d started: %s (%d bytes)%n", frame.requestId(), name, size);
+        CommandDispatcher.sendOk(ctx, frame.requestId(), Unpooled.EMPTY_BUFFER);
+    }
+
+    private void write(ChannelHandlerContext ctx, Frame frame) throws IOException {
+        FileChannel channel = uploads.get(frame.requestId());
+        if (channel == null) {
+            CommandDispatcher.sendError(ctx, frame.requestId(), "Upload not started");
+            return;
+        }
+        ByteBuf payload = frame.payload();
+        while (payload.isReadable()) {
+            payload.readBytes(channel, payload.readableBytes());
+        }
+    }
+
+    private void finish(ChannelHandlerContext ctx, Frame frame) throws IOException {
+        FileChannel channel = uploads.remove(frame.requestId());
+        if (channel == null) {
+            CommandDispatcher.sendError(ctx, frame.requestId(), "Upload not started");
+            return;
+        }
+        channel.close();
+        Path path = paths.remove(frame.requestId());
+        ReadCache.shared().invalidate(path);
+        MetadataIndex.shared().refresh(path);
+        CommandDispatcher.sendOk(ctx, frame.requestId(), Unpooled.EMPTY_BUFFER);
+    }
+
+    @Override
+    public void channelClosed() {
+        for (FileChannel channel : uploads.values()) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        uploads.clear();
+        for (Path path : paths.values()) {
+            ReadCache.shared().invalidate(path);
+            MetadataIndex.shared().refresh(path);
+        }
+        paths.clear();
+    }
+}
@@ -1,79 +1,86 @@
 package ru.onetwo33.nio;
 
+import ru.onetwo33.common.ParallelCopy;
+import ru.onetwo33.server.cache.ReadCache;
+import ru.onetwo33.server.db.MetaStore;
+import ru.onetwo33.server.index.Listing;
+import ru.onetwo33.server.index.MetadataIndex;
+import ru.onetwo33.server.store.ChunkStore;
+
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
-import java.nio.file.attribute.BasicFileAttributes;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class NioTelnetServer {
-    public static final String LS_COMMAND = "\tls - view all files and directories\n";
+    public static final String LS_COMMAND = "\tls [-l] [-s name|size|date] [-r] [page] - view files and directories, 100 per page\n";
     public static final String MKDIR_COMMAND = "\tmkdir [dirname] - create directory\n";
     public static final String CHANGE_NICKNAME = "\tnick [nickname] - change nickname\n";
     public static final String TOUCH_COMMAND = "\ttouch [filename] - create file\n";
     public static final String CD_COMMAND = "\tcd [path] - move on catalog\n";
     public static final String RM_COMMAND = "\trm [filename | dirname] - delete file or directory (empty)\n";
-    public static final String COPY_COMMAND = "\tcopy [src] [target] - copy file or directory\n";
+    public static final String COPY_COMMAND = "\tcopy [-l] [src] [target] - copy file or directory, -l hard links the files\n";
     public static final String CAT_COMMAND = "\tcat [filename] - read file\n";
+    public static final String FIND_COMMAND = "\tfind [name] [-type f|d] [-size +N|-N] [-newer date] [-older date] [-page N] - search files below the current directory\n";
+    public static final String WALL_COMMAND = "\twall [message] - send message to all users\n";
+    public static final String REGISTER_COMMAND = "\tregister [user] [password] - create an account\n";
+    public static final String LOGIN_COMMAND = "\tlogin [user] [password] - sign in, new files are owned by the user\n";
+    public static final String CANCEL_COMMAND = "\tcancel - stop the running copy\n";
+    public static final String CACHE_COMMAND = "\tcache - read cache statistics\n";
 
     private static final String ROOT_NOTIFICATION = "You are already in the root directory\n\n";
     private static final String DIRECTORY_DOESNT_EXIST = "Directory %s doesn't exist\n\n";
     private static final String ROOT_PATH = "server";
 
-    private Path currentPath = Path.of("server");
-
-    private Map<SocketAddress, String> clients = new HashMap<>();
-
-    private final ByteBuffer buffer = ByteBuffer.allocate(512);
+    // every connected session, for the cases that address other users
+    private final Map<SocketAddress, Session> sessions = new ConcurrentHashMap<>();
 
+    /**
+     * The calling thread accepts connections and hands them out to one reactor per core
+     */
     public NioTelnetServer() throws IOException {
         ServerSocketChannel server = ServerSocketChannel.open();
         server.bind(new InetSocketAddress(5678));
-        server.configureBlocking(false);
-        // OP_ACCEPT, OP_READ, OP_WRITE
-        Selector selector = Selector.open();
+        MetadataIndex.shared(); // index the tree before the first ls
 
-        server.register(selector, SelectionKey.OP_ACCEPT);
+        Reactor[] reactors = new Reactor[Runtime.getRuntime().availableProcessors()];
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor(this);
+            new Thread(reactors[i], "reactor-" + i).start();
+        }
         System.out.println("Server started");
 
+        int next = 0;
         while (server.isOpen()) {
-            selector.select();
-
-            var selectionKeys = selector.selectedKeys();
-            var iterator = selectionKeys.iterator();
-
-            while (iterator.hasNext()) {
-                var key = iterator.next();
-                if (key.isAcceptable()) {
-                    handleAccept(key, selector);
-                } else if (key.isReadable()) {
-                    handleRead(key, selector);
-                }
-                iterator.remove();
-            }
+            SocketChannel channel = server.accept();
+            System.out.println("Client accepted. IP: " + channel.getRemoteAddress());
+            reactors[next].register(channel);
+            next = (next + 1) % reactors.length;
         }
     }
 
-    private void handleRead(SelectionKey key, Selector selector) throws IOException {
+    void handleRead(SelectionKey key) throws IOException {
         SocketChannel channel = ((SocketChannel) key.channel());
-        SocketAddress client = channel.getRemoteAddress();
-
-        String nickname = "";
+        Session session = (Session) key.attachment();
+        ByteBuffer buffer = session.getReadBuffer();
 
         int readBytes = channel.read(buffer);
         if (readBytes < 0) {
-            channel.close();
+            handleClose(key);
             return;
         } else if (readBytes == 0) {
             return;
         }
+        if (buffer.hasRemaining() && buffer.get(buffer.position() - 1) != '\n') {
+            return; // the rest of the line is still on its way
+        }
 
         buffer.flip();
 
@@ -93,217 +100,357 @@ public class NioTelnetServer {
             String[] cmds = command.split(" ");
 
             if ("--help".equals(cmds[0])) {
-                sendMessage(LS_COMMAND, selector, client);
-                sendMessage(MKDIR_COMMAND, selector, client);
-                sendMessage(CHANGE_NICKNAME, selector, client);
-                sendMessage(TOUCH_COMMAND, selector, client);
-                sendMessage(CD_COMMAND, selector, client);
-                sendMessage(RM_COMMAND, selector, client);
-                sendMessage(COPY_COMMAND, selector, client);
-                sendMessage(CAT_COMMAND, selector, client);
+                sendMessage(LS_COMMAND, session);
+                sendMessage(MKDIR_COMMAND, session);
+                sendMessage(CHANGE_NICKNAME, session);
+                sendMessage(TOUCH_COMMAND, session);
+                sendMessage(CD_COMMAND, session);
+                sendMessage(RM_COMMAND, session);
+                sendMessage(COPY_COMMAND, session);
+                sendMessage(CAT_COMMAND, session);
+                sendMessage(FIND_COMMAND, session);
+                sendMessage(WALL_COMMAND, session);
+                sendMessage(REGISTER_COMMAND, session);
+                sendMessage(LOGIN_COMMAND, session);
+                sendMessage(CANCEL_COMMAND, session);
+                sendMessage(CACHE_COMMAND, session);
             } else if ("ls".equals(cmds[0])) {
-                sendMessage(getFileList().concat("\n"), selector, client);
+                sendMessage(getFileList(session, cmds).concat("\n"), session);
             } else if ("touch".equals(cmds[0])) {
-                createFile(cmds[1], selector, client);
+                createFile(session, cmds[1]);
             } else if ("mkdir".equals(cmds[0])) {
-                createDirectory(cmds[1], selector, client);
+                createDirectory(session, cmds[1]);
             } else if ("cd".equals(cmds[0])) {
-                replacePosition(selector, client, cmds[1]);
+                replacePosition(session, cmds[1]);
             } else if ("rm".equals(cmds[0])) {
-                removeFile(cmds[1], selector, client);
+                removeFile(session, cmds[1]);
             } else if ("copy".equals(cmds[0])) {
-                copyFile(cmds[1], cmds[2], selector, client);
+                boolean link = "-l".equals(cmds[1]);
+                if (copyFile(session, cmds[link ? 2 : 1], cmds[link ? 3 : 2], link)) {
+                    session.flush(key);
+                    return; // the prompt follows the copy result
+                }
+            } else if ("find".equals(cmds[0])) {
+                sendMessage(Listing.find(MetadataIndex.shared(), session.getCurrentPath(), cmds).concat("\n"), session);
             } else if ("cat".equals(cmds[0])) {
-                readFile(cmds[1], selector, client);
+                readFile(session, cmds[1]);
+            } else if ("cache".equals(cmds[0])) {
+                sendMessage(ReadCache.shared().stats().concat("\n"), session);
+            } else if ("cancel".equals(cmds[0])) {
+                ParallelCopy copy = session.getCopy();
+                if (copy != null) {
+                    copy.cancel();
+                    sendMessage("Cancelling copy\n", session);
+                    session.flush(key);
+                    return;
+                }
+                sendMessage("Nothing to cancel\n", session);
+            } else if ("register".equals(cmds[0]) || "login".equals(cmds[0])) {
+                // password hashing is slow on purpose, keep it off the reactor
+                account(session, cmds);
+                session.flush(key);
+                return;
+            } else if ("wall".equals(cmds[0])) {
+                broadcast(session, command.substring(cmds[0].length()).trim());
             } else if ("nick".equals(cmds[0])) {
-                nickname = changeName(channel, cmds);
+                changeName(session, cmds);
             } else if ("exit".equals(cmds[0])) {
                 System.out.println("Client logged out. IP: " + channel.getRemoteAddress());
-                channel.close();
+                handleClose(key);
                 return;
             }
         }
-        sendName(channel, nickname);
+        sendName(session);
+        session.flush(key);
     }
 
-    private void readFile(String filename, Selector selector, SocketAddress client) {
-        Path path = Path.of(currentPath.toString(), filename);
+    private void readFile(Session session, String filename) {
+        Path path = Path.of(session.getCurrentPath().toString(), filename);
+        MetaStore.FileRecord record = MetaStore.shared().get(storeName(path));
         try {
-            if (Files.isDirectory(path)) {
-                sendMessage(String.format("%s is directory\n", filename), selector, client);
-            } else if (Files.exists(path)) {
-                FileChannel channel = new RandomAccessFile(path.toString(), "r").getChannel();
-                int bytesRead = channel.read(buffer);
-                while (bytesRead != -1) {
-                    buffer.flip();
-                    while (buffer.hasRemaining()) {
-                        sendMessage(String.valueOf((char) buffer.get()), selector, client);
-                    }
-                    buffer.clear();
-                    bytesRead = channel.read(buffer);
+            if (record != null && record.isDirectory()) {
+                sendMessage(String.format("%s is directory\n", filename), session);
+            } else if (record != null) {
+                ByteBuffer cached = ReadCache.shared().get(path, record.getSize(), record.getModified());
+                if (cached != null) {
+                    session.enqueue(cached); // a view of the cached direct buffer
+                    sendMessage("\n", session);
+                    return;
                 }
-                sendMessage("\n", selector, client);
-                channel.close();
+                // read chunk by chunk as the socket drains, not all at once on the reactor
+                session.stream(FileChannel.open(path, StandardOpenOption.READ));
+                sendMessage("\n", session);
             } else {
-                sendMessage("File not found\n", selector, client);
+                sendMessage("File not found\n", session);
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    private void copyFile(String source, String target, Selector selector, SocketAddress client) throws IOException {
-        Path pathSource = Path.of(currentPath.toString(), source);
-        Path pathTarget = Path.of(currentPath.toString(), target);
-        if (Files.isDirectory(pathSource)) {
-            try {
-                Files.walkFileTree(pathSource, new SimpleFileVisitor<Path>() {
-                    @Override
-                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                        Path newdir = pathTarget.resolve(pathSource.relativize(dir));
-                        if (Files.exists(newdir)) {
-                            return FileVisitResult.CONTINUE;
-                        }
-                        System.out.println("created dir: " + dir.toString());
-                        Files.createDirectory(newdir);
-                        return FileVisitResult.CONTINUE;
-                    }
-
-                    @Override
-                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                        System.out.println("copy file: " + file.toString());
-                        Path newfile = pathTarget.resolve(pathSource.relativize(file));
-                        Files.copy(file, newfile);
-                        return FileVisitResult.CONTINUE;
-                    }
-                });
-            } catch (FileAlreadyExistsException e) {
-                sendMessage("File already exists\n", selector, client);
-            } catch(IOException e){
-                e.printStackTrace();
+    /**
+     * Starts the copy on the copy pool, true when the result and the prompt are sent later
+     */
+    private boolean copyFile(Session session, String source, String target, boolean link) {
+        Path pathSource = Path.of(session.getCurrentPath().toString(), source);
+        Path pathTarget = Path.of(session.getCurrentPath().toString(), target);
+        try {
+            // deduplicated files are copied by cloning their manifest, a real file of the same name wins
+            if (!Files.exists(pathSource) && ChunkStore.shared().cloneManifest(storeName(pathSource), storeName(pathTarget))) {
+                sendMessage("OK\n", session);
+                return false;
             }
-        } else {
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (session.getCopy() != null) {
+            sendMessage("Another copy is running\n", session);
+            return false;
+        }
+        ParallelCopy copy = new ParallelCopy(link, (files, bytes) ->
+                send(session, String.format("copying: %d files, %d KB\n", files, bytes / 1024)));
+        session.setCopy(copy);
+        ParallelCopy.POOL.execute(() -> {
+            String result = "";
             try {
-                Files.copy(pathSource, pathTarget);
+                copy.copy(pathSource, pathTarget);
+                if (copy.isCancelled()) {
+                    result = String.format("Copy cancelled after %d files, %d KB\n", copy.getFiles(), copy.getBytes() / 1024);
+                }
             } catch (FileAlreadyExistsException e) {
-                sendMessage("File already exists\n", selector, client);
+                result = "File already exists\n";
             } catch (IOException e) {
                 e.printStackTrace();
             }
+            ReadCache.shared().invalidateTree(pathTarget);
+            MetadataIndex.shared().rescan(pathTarget);
+            own(session, pathTarget);
+            session.setCopy(null);
+            send(session, result.concat(prompt(session)));
+        });
+        return true;
+    }
+
+    private String storeName(Path path) {
+        return Path.of(ROOT_PATH).relativize(path.normalize()).toString();
+    }
+
+    /**
+     * Gives the path and everything below it to the logged in user
+     */
+    private void own(Session session, Path path) {
+        String user = session.getUser();
+        if (user.isEmpty()) {
+            return;
+        }
+        String name = storeName(path);
+        MetaStore.shared().setOwner(name, user);
+        for (String child : MetaStore.shared().paths(name)) {
+            MetaStore.shared().setOwner(child, user);
+        }
+    }
+
+    /**
+     * register and login, answered from the common pool together with the prompt
+     */
+    private void account(Session session, String[] cmds) {
+        if (cmds.length < 3) {
+            sendMessage(String.format("Usage: %s [user] [password]\n", cmds[0]), session);
+            sendName(session);
+            return;
         }
+        String user = cmds[1];
+        String password = cmds[2];
+        CompletableFuture.supplyAsync(() -> {
+            if ("register".equals(cmds[0])) {
+                return MetaStore.shared().addUser(user, password).join()
+                        ? "OK\n" : String.format("User %s already exists\n", user);
+            }
+            return MetaStore.shared().authenticate(user, password) ? null : "Wrong user or password\n";
+        }).thenAccept(result -> session.getReactor().execute(() -> {
+            if (result == null) {
+                session.setUser(user);
+                session.setNickname(user);
+                System.out.println("Client - " + session.getAddress() + " logged in as " + user);
+            }
+            deliver(session, ByteBuffer.wrap((result == null ? "OK\n" : result).concat(prompt(session))
+                    .getBytes(StandardCharsets.UTF_8)));
+        }));
     }
 
-    private void removeFile(String filename, Selector selector, SocketAddress client) throws IOException {
-        Path path = Path.of(currentPath.toString(), filename);
+    private void removeFile(Session session, String filename) throws IOException {
+        Path path = Path.of(session.getCurrentPath().toString(), filename);
         try {
-            if (Files.exists(path)) {
-                Files.delete(path);
-                sendMessage("OK\n", selector, client);
+            MetaStore.FileRecord record = MetaStore.shared().get(storeName(path));
+            if (record == null) {
+                sendMessage("File not found\n", session);
+            } else if (!record.getOwner().isEmpty() && !record.getOwner().equals(session.getUser())) {
+                sendMessage(String.format("%s belongs to %s\n", filename, record.getOwner()), session);
             } else {
-                sendMessage("File not found\n", selector, client);
+                Files.delete(path);
+                ReadCache.shared().invalidate(path);
+                MetadataIndex.shared().refresh(path);
+                sendMessage("OK\n", session);
             }
+        } catch (NoSuchFileException e) {
+            MetadataIndex.shared().refresh(path);
+            sendMessage("File not found\n", session);
         } catch (DirectoryNotEmptyException e) {
-            sendMessage(String.format("Directory %s not empty\n", filename), selector, client);
+            sendMessage(String.format("Directory %s not empty\n", filename), session);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    private void createDirectory(String dirname, Selector selector, SocketAddress client) {
-        Path path = Path.of(currentPath.toString(), dirname);
+    private void createDirectory(Session session, String dirname) {
+        Path path = Path.of(session.getCurrentPath().toString(), dirname);
         try {
-            if (!Files.exists(path)) {
+            if (!MetaStore.shared().exists(storeName(path))) {
                 Files.createDirectory(path);
-                sendMessage("OK\n", selector, client);
+                MetadataIndex.shared().refresh(path);
+                own(session, path);
+                sendMessage("OK\n", session);
             } else {
-                sendMessage("File already exists\n", selector, client);
+                sendMessage("File already exists\n", session);
             }
+        } catch (FileAlreadyExistsException e) {
+            sendMessage("File already exists\n", session);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    private void replacePosition(Selector selector, SocketAddress client, String neededPathString) throws IOException {
-        Path tempPath = Path.of(currentPath.toString(), neededPathString);
+    private void replacePosition(Session session, String neededPathString) throws IOException {
+        Path tempPath = Path.of(session.getCurrentPath().toString(), neededPathString);
         if ("..".equals(neededPathString)) {
-            tempPath = currentPath.getParent(); // server/..
+            tempPath = session.getCurrentPath().getParent(); // server/..
             if (tempPath == null || !tempPath.toString().startsWith("server")) {
-                sendMessage(ROOT_NOTIFICATION, selector, client);
+                sendMessage(ROOT_NOTIFICATION, session);
             } else {
-                currentPath = tempPath;
+                session.setCurrentPath(tempPath);
             }
         } else if ("~".equals(neededPathString)) {
-            currentPath = Path.of(ROOT_PATH);
+            session.setCurrentPath(Path.of(ROOT_PATH));
         } else if (".".equals(neededPathString)) {
             // nothing to do
         } else {
-            if (tempPath.toFile().exists()) {
-                currentPath = tempPath;
+            if (MetaStore.shared().isDirectory(storeName(tempPath))) {
+                session.setCurrentPath(tempPath.normalize());
             } else {
-                sendMessage(String.format(DIRECTORY_DOESNT_EXIST, neededPathString), selector, client);
+                sendMessage(String.format(DIRECTORY_DOESNT_EXIST, neededPathString), session);
             }
         }
     }
 
-    private String changeName(SocketChannel channel, String[] cmds) throws IOException {
-        String nickname;
-        nickname = cmds[1];
-        clients.put(channel.getRemoteAddress(), nickname);
-        System.out.println("Client - " + channel.getRemoteAddress().toString() + " changed nickname on " + nickname);
-        System.out.println(clients);
-        return nickname;
+    private void changeName(Session session, String[] cmds) {
+        String nickname = cmds[1];
+        session.setNickname(nickname);
+        System.out.println("Client - " + session.getAddress() + " changed nickname on " + nickname);
     }
 
-    private void sendName(SocketChannel channel, String nickname) throws IOException {
-        if (nickname.isEmpty()) {
-            nickname = clients.getOrDefault(channel.getRemoteAddress(), channel.getRemoteAddress().toString());
-        }
-        String currentPathString = currentPath.toString().replace("server", "~");
-
-        channel.write(
-                ByteBuffer.wrap(nickname.concat(">:").concat(currentPathString).concat("$ ")
-                .getBytes(StandardCharsets.UTF_8)
-        ));
+    private void sendName(Session session) {
+        session.enqueue(prompt(session));
+    }
 
+    private String prompt(Session session) {
+        String currentPathString = session.getCurrentPath().toString().replace("server", "~");
+        return session.getNickname().concat(">:").concat(currentPathString).concat("$ ");
     }
 
-    private void createFile(String filename, Selector selector, SocketAddress client) {
-        Path path = Path.of(currentPath.toString(), filename);
+    private void createFile(Session session, String filename) {
+        Path path = Path.of(session.getCurrentPath().toString(), filename);
         try {
-            if (!Files.exists(path)) {
+            if (!MetaStore.shared().exists(storeName(path))) {
                 Files.createFile(path);
-                sendMessage("OK\n", selector, client);
+                MetadataIndex.shared().refresh(path);
+                own(session, path);
+                sendMessage("OK\n", session);
             } else {
-                sendMessage("File already exists\n", selector, client);
+                sendMessage("File already exists\n", session);
             }
+        } catch (FileAlreadyExistsException e) {
+            sendMessage("File already exists\n", session);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    private String getFileList() {
-        return String.join(" ", new File(currentPath.toString()).list());
+    private String getFileList(Session session, String[] cmds) {
+        return Listing.ls(MetadataIndex.shared(), session.getCurrentPath(), cmds);
     }
 
-    private void sendMessage(String message, Selector selector, SocketAddress client) throws IOException {
-        for (SelectionKey key : selector.keys()) {
-            if (key.isValid() && key.channel() instanceof SocketChannel) {
-                if (((SocketChannel)key.channel()).getRemoteAddress().equals(client)) {
-                    ((SocketChannel)key.channel())
-                            .write(ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
-                }
+    private void sendMessage(String message, Session session) {
+        session.enqueue(message);
+    }
+
+    /**
+     * Encoded once, every session gets a view of the same bytes
+     */
+    private void broadcast(Session from, String message) {
+        ByteBuffer bytes = ByteBuffer.wrap(from.getNickname().concat(": ").concat(message).concat("\n")
+                .getBytes(StandardCharsets.UTF_8));
+        for (Session session : sessions.values()) {
+            if (session != from) {
+                send(session, bytes.duplicate());
             }
         }
     }
 
-    private void handleAccept(SelectionKey key, Selector selector) throws IOException {
-        SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
-        channel.configureBlocking(false);
-        System.out.println("Client accepted. IP: " + channel.getRemoteAddress());
+    private void send(Session session, String message) {
+        send(session, ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
+    }
 
-        channel.register(selector, SelectionKey.OP_READ, "some attach");
-        channel.write(ByteBuffer.wrap("Hello user!\n".getBytes(StandardCharsets.UTF_8)));
-        channel.write(ByteBuffer.wrap("Enter --help for support info\n".getBytes(StandardCharsets.UTF_8)));
+    /**
+     * Safe from any thread: the buffer is queued and flushed by the reactor owning the session
+     */
+    private void send(Session session, ByteBuffer buffer) {
+        if (session.getReactor().inReactor()) {
+            deliver(session, buffer);
+        } else {
+            session.getReactor().execute(() -> deliver(session, buffer));
+        }
+    }
+
+    /**
+     * Runs on the reactor that owns the session
+     */
+    private void deliver(Session session, ByteBuffer buffer) {
+        SelectionKey key = session.getKey();
+        if (!key.isValid()) {
+            return;
+        }
+        session.enqueue(buffer);
+        try {
+            session.flush(key);
+        } catch (IOException e) {
+            System.out.println("Client disconnected: " + e.getMessage());
+            handleClose(key);
+        }
+    }
+
+    void handleAccept(Reactor reactor, SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Session session = new Session(channel.getRemoteAddress(), Path.of(ROOT_PATH));
+        session.bind(reactor, key);
+        key.attach(session);
+        sessions.put(session.getAddress(), session);
+        session.enqueue("Hello user!\n");
+        session.enqueue("Enter --help for support info\n");
+        session.flush(key);
+    }
+
+    void handleClose(SelectionKey key) {
+        Session session = (Session) key.attachment();
+        if (session != null) {
+            sessions.remove(session.getAddress(), session);
+            session.close();
+        }
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     public static void main(String[] args) throws IOException {
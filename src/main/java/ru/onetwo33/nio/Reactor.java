@@ -0,0 +1,108 @@
+package ru.onetwo33.nio;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One selector thread serving its share of the connections: reads and commands on OP_READ,
+ * draining the session's outbound queue on OP_WRITE
+ */
+public class Reactor implements Runnable {
+
+    private final NioTelnetServer server;
+    private final Selector selector;
+    private final Queue<SocketChannel> registrations = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    private volatile Thread thread;
+
+    public Reactor(NioTelnetServer server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Called by the acceptor thread, the channel is registered by the reactor itself
+     */
+    public void register(SocketChannel channel) {
+        registrations.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the task on the reactor thread, for other threads that want to touch its sessions
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    public boolean inReactor() {
+        return Thread.currentThread() == thread;
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            }
+            registerPending();
+            runTasks();
+
+            var iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                var key = iterator.next();
+                iterator.remove();
+                try {
+                    if (key.isValid() && key.isWritable()) {
+                        ((Session) key.attachment()).flush(key);
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        server.handleRead(key);
+                    }
+                } catch (IOException e) {
+                    System.out.println("Client disconnected: " + e.getMessage());
+                    server.handleClose(key);
+                }
+            }
+        }
+    }
+
+    private void registerPending() {
+        SocketChannel channel;
+        while ((channel = registrations.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                server.handleAccept(this, key);
+            } catch (IOException e) {
+                e.printStackTrace();
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
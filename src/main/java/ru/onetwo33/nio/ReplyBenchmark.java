@@ -0,0 +1,115 @@
+package ru.onetwo33.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cost of one reply as the connection count grows: the old scan over selector.keys()
+ * against the session bound to the key and the registry lookup used for broadcasts.
+ * Run with: java ru.onetwo33.nio.ReplyBenchmark [connections...]
+ */
+public class ReplyBenchmark {
+
+    private static final int REPLIES = 20_000;
+    private static final String MESSAGE = "reply\n";
+
+    public static void main(String[] args) throws IOException {
+        int[] counts = {1, 10, 100, 1000};
+        if (args.length > 0) {
+            counts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                counts[i] = Integer.parseInt(args[i]);
+            }
+        }
+        System.out.printf("%12s %14s %14s %14s%n", "connections", "scan ns/op", "key ns/op", "registry ns/op");
+        for (int count : counts) {
+            run(count);
+        }
+    }
+
+    private static void run(int count) throws IOException {
+        try (ServerSocketChannel server = ServerSocketChannel.open();
+             Selector selector = Selector.open()) {
+            server.bind(new InetSocketAddress("localhost", 0));
+            List<SocketChannel> clients = new ArrayList<>();
+            List<SelectionKey> keys = new ArrayList<>();
+            Map<SocketAddress, Session> sessions = new ConcurrentHashMap<>();
+            try {
+                for (int i = 0; i < count; i++) {
+                    clients.add(SocketChannel.open(server.getLocalAddress()));
+                    SocketChannel accepted = server.accept();
+                    accepted.configureBlocking(false);
+                    SelectionKey key = accepted.register(selector, SelectionKey.OP_READ);
+                    Session session = new Session(accepted.getRemoteAddress(), Path.of("server"));
+                    key.attach(session);
+                    keys.add(key);
+                    sessions.put(session.getAddress(), session);
+                }
+
+                // warm up each path before measuring it
+                scan(selector, keys);
+                direct(keys);
+                registry(sessions, keys);
+
+                System.out.printf("%12d %14d %14d %14d%n", count,
+                        scan(selector, keys), direct(keys), registry(sessions, keys));
+            } finally {
+                for (SelectionKey key : keys) {
+                    key.channel().close();
+                }
+                for (SocketChannel client : clients) {
+                    client.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * What sendMessage(message, selector, client) used to do
+     */
+    private static long scan(Selector selector, List<SelectionKey> keys) throws IOException {
+        Random random = new Random(1);
+        long start = System.nanoTime();
+        for (int i = 0; i < REPLIES; i++) {
+            SocketAddress client = ((Session) keys.get(random.nextInt(keys.size())).attachment()).getAddress();
+            for (SelectionKey key : selector.keys()) {
+                if (key.isValid() && key.channel() instanceof SocketChannel) {
+                    if (((SocketChannel) key.channel()).getRemoteAddress().equals(client)) {
+                        ((Session) key.attachment()).enqueue(MESSAGE);
+                    }
+                }
+            }
+        }
+        return (System.nanoTime() - start) / REPLIES;
+    }
+
+    private static long direct(List<SelectionKey> keys) {
+        Random random = new Random(1);
+        long start = System.nanoTime();
+        for (int i = 0; i < REPLIES; i++) {
+            ((Session) keys.get(random.nextInt(keys.size())).attachment()).enqueue(MESSAGE);
+        }
+        return (System.nanoTime() - start) / REPLIES;
+    }
+
+    private static long registry(Map<SocketAddress, Session> sessions, List<SelectionKey> keys) {
+        Random random = new Random(1);
+        long start = System.nanoTime();
+        for (int i = 0; i < REPLIES; i++) {
+            SocketAddress client = ((Session) keys.get(random.nextInt(keys.size())).attachment()).getAddress();
+            sessions.get(client).enqueue(MESSAGE);
+        }
+        return (System.nanoTime() - start) / REPLIES;
+    }
+}
@@ -0,0 +1,191 @@
+package ru.onetwo33.nio;
+
+import ru.onetwo33.common.ParallelCopy;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * State of one telnet connection, attached to its SelectionKey.
+ * Only the reactor thread owning the key touches it.
+ */
+public class Session {
+
+    // stop reading commands while this much output waits for the client
+    private static final int MAX_QUEUED_BYTES = 1024 * 1024;
+    private static final int FILE_CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_GATHER = 16;
+
+    private final SocketAddress address;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(512);
+    private final Queue<ByteBuffer> outbound = new ArrayDeque<>();
+    private final Queue<ByteBuffer> afterFile = new ArrayDeque<>(); // queued while a file streams
+
+    // file being streamed: one chunk is read each time the socket has taken the previous one
+    private FileChannel file;
+    private long filePosition;
+    private long fileEnd;
+    private ByteBuffer fileChunk;
+
+    private int queuedBytes;
+    private Reactor reactor;
+    private SelectionKey key;
+
+    private Path currentPath;
+    private String nickname;
+    private String user = ""; // empty until login
+    private volatile ParallelCopy copy; // running copy, set from the copy pool too
+
+    public Session(SocketAddress address, Path root) {
+        this.address = address;
+        this.currentPath = root;
+        this.nickname = address.toString();
+    }
+
+    public void bind(Reactor reactor, SelectionKey key) {
+        this.reactor = reactor;
+        this.key = key;
+    }
+
+    public SocketAddress getAddress() {
+        return address;
+    }
+
+    public ByteBuffer getReadBuffer() {
+        return readBuffer;
+    }
+
+    public void enqueue(String message) {
+        enqueue(ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public void enqueue(ByteBuffer buffer) {
+        (file != null ? afterFile : outbound).add(buffer);
+        queuedBytes += buffer.remaining();
+    }
+
+    /**
+     * Sends the file after what is queued so far, whatever is queued later follows the file.
+     * Commands are not read until it is out. The session closes the channel.
+     */
+    public void stream(FileChannel channel) throws IOException {
+        if (file != null) {
+            channel.close();
+            throw new IllegalStateException("Already streaming a file");
+        }
+        file = channel;
+        filePosition = 0;
+        fileEnd = channel.size();
+        if (fileChunk == null) {
+            fileChunk = ByteBuffer.allocate(FILE_CHUNK_SIZE);
+        }
+    }
+
+    public void close() {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            file = null;
+        }
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public void setUser(String user) {
+        this.user = user;
+    }
+
+    public ParallelCopy getCopy() {
+        return copy;
+    }
+
+    public void setCopy(ParallelCopy copy) {
+        this.copy = copy;
+    }
+
+    public Reactor getReactor() {
+        return reactor;
+    }
+
+    public SelectionKey getKey() {
+        return key;
+    }
+
+    /**
+     * Writes as much as the socket takes; the rest waits for OP_WRITE
+     */
+    public void flush(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        while (!outbound.isEmpty() || file != null) {
+            if (outbound.isEmpty()) {
+                nextFileChunk();
+                continue;
+            }
+            // one gathering write, a reply and its prompt leave in the same segment
+            ByteBuffer[] gather = new ByteBuffer[Math.min(outbound.size(), MAX_GATHER)];
+            var iterator = outbound.iterator();
+            for (int i = 0; i < gather.length; i++) {
+                gather[i] = iterator.next();
+            }
+            queuedBytes -= channel.write(gather);
+            while (!outbound.isEmpty() && !outbound.peek().hasRemaining()) {
+                outbound.poll();
+            }
+            if (!outbound.isEmpty()) {
+                int ops = SelectionKey.OP_WRITE;
+                if (queuedBytes < MAX_QUEUED_BYTES && file == null) {
+                    ops |= SelectionKey.OP_READ;
+                }
+                key.interestOps(ops);
+                return;
+            }
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Queues the next chunk of the file, or closes it and lets the output queued behind it go
+     */
+    private void nextFileChunk() throws IOException {
+        fileChunk.clear().limit((int) Math.min(fileChunk.capacity(), fileEnd - filePosition));
+        int read = fileChunk.hasRemaining() ? file.read(fileChunk, filePosition) : -1;
+        if (read <= 0) {
+            close();
+            outbound.addAll(afterFile);
+            afterFile.clear();
+            return;
+        }
+        filePosition += read;
+        queuedBytes += read;
+        outbound.add(fileChunk.flip());
+    }
+
+    public Path getCurrentPath() {
+        return currentPath;
+    }
+
+    public void setCurrentPath(Path currentPath) {
+        this.currentPath = currentPath;
+    }
+
+    public String getNickname() {
+        return nickname;
+    }
+
+    public void setNickname(String nickname) {
+        this.nickname = nickname;
+    }
+}
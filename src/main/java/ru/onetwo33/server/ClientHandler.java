@@ -1,11 +1,44 @@
 package ru.onetwo33.server;
 
+import ru.onetwo33.common.Checksums;
+import ru.onetwo33.common.Chunker;
+import ru.onetwo33.common.Compression;
+import ru.onetwo33.common.Delta;
+import ru.onetwo33.common.PartFile;
+import ru.onetwo33.common.PipelineProtocol;
+import ru.onetwo33.common.TreeStream;
+import ru.onetwo33.server.cache.ReadCache;
+import ru.onetwo33.server.db.MetaStore;
+import ru.onetwo33.server.index.MetadataIndex;
+import ru.onetwo33.server.store.ChunkStore;
+import ru.onetwo33.server.store.Manifest;
+
 import java.io.*;
+import java.net.ProtocolException;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 public class ClientHandler implements Runnable {
 
+    private static final int CHANGES_PAGE = 10_000;
+
     private final Socket socket;
 
     public ClientHandler(Socket socket) {
@@ -26,6 +59,60 @@ public class ClientHandler implements Runnable {
                 if ("download".equals(command)) {
                     downloading(out, in);
                 }
+                if ("zupload".equals(command)) {
+                    compressedUploading(out, in);
+                }
+                if ("zdownload".equals(command)) {
+                    compressedDownloading(out, in);
+                }
+                if ("delta-upload".equals(command)) {
+                    deltaUploading(out, in);
+                }
+                if ("dedup-upload".equals(command)) {
+                    dedupUploading(out, in);
+                }
+                if ("dedup-download".equals(command)) {
+                    dedupDownloading(out, in);
+                }
+                if ("resume-upload".equals(command)) {
+                    resumeUploading(out, in);
+                }
+                if ("resume-download".equals(command)) {
+                    resumeDownloading(out, in);
+                }
+                if ("stat".equals(command)) {
+                    stat(out, in);
+                }
+                if ("range-download".equals(command)) {
+                    rangeDownloading(out, in);
+                }
+                if ("range-upload".equals(command)) {
+                    rangeUploading(out, in);
+                }
+                if ("range-commit".equals(command)) {
+                    rangeCommit(out, in);
+                }
+                if ("tree-upload".equals(command)) {
+                    treeUploading(out, in);
+                }
+                if ("tree-download".equals(command)) {
+                    treeDownloading(out, in);
+                }
+                if ("changes".equals(command)) {
+                    changes(out, in);
+                }
+                if ("sync-push".equals(command)) {
+                    syncPush(out, in);
+                }
+                if ("sync-pull".equals(command)) {
+                    syncPull(out, in);
+                }
+                if ("sync-delete".equals(command)) {
+                    syncDelete(out, in);
+                }
+                if (PipelineProtocol.COMMAND.equals(command)) {
+                    pipelining(in);
+                }
                 if ("exit".equals(command)) {
                     out.writeUTF("DONE");
                     disconnected();
@@ -50,13 +137,25 @@ public class ClientHandler implements Runnable {
             }
 
             out.writeUTF("File found");
+            byte[] buffer = new byte[8 * 1024];
+            ByteBuffer cached = ReadCache.shared().get(file.toPath());
+            if (cached != null) {
+                out.writeLong(cached.remaining());
+                while (cached.hasRemaining()) {
+                    int read = Math.min(buffer.length, cached.remaining());
+                    cached.get(buffer, 0, read);
+                    out.write(buffer, 0, read);
+                }
+                out.flush();
+                return;
+            }
+
             long fileLength = file.length();
             FileInputStream fis = new FileInputStream(file);
 
             out.writeLong(fileLength);
 
             int read = 0;
-            byte[] buffer = new byte[8 * 1024];
             while ((read = fis.read(buffer)) != -1) {
                 out.write(buffer, 0, read);
             }
@@ -85,12 +184,738 @@ public class ClientHandler implements Runnable {
                 fos.write(buffer, 0, read);
             }
             fos.close();
+            changed(file.toPath());
             out.writeUTF("OK");
         } catch (Exception e) {
             out.writeUTF("WRONG");
         }
     }
 
+    /**
+     * zupload filename size codec, raw bytes for NONE or compressed blocks -> "OK"
+     */
+    private void compressedUploading(DataOutputStream out, DataInputStream in) throws IOException {
+        File file = new File("server/" + in.readUTF());
+        long size = in.readLong();
+        Compression.Codec codec = Compression.Codec.of(in.readUTF());
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            if (codec == Compression.Codec.NONE) {
+                copy(in, fos, size);
+            } else {
+                try (InputStream zin = Compression.decompress(in)) {
+                    copy(zin, fos, size);
+                }
+            }
+        }
+        changed(file.toPath());
+        out.writeUTF("OK");
+    }
+
+    /**
+     * zdownload filename codec -> "File found" size codec, raw bytes for NONE or compressed blocks | "File not found"
+     * The server falls back to NONE for content that is already compressed
+     */
+    private void compressedDownloading(DataOutputStream out, DataInputStream in) throws IOException {
+        File file = new File("server/" + in.readUTF());
+        Compression.Codec requested = Compression.Codec.of(in.readUTF());
+        if (!file.isFile()) {
+            out.writeUTF("File not found");
+            return;
+        }
+        try (BufferedInputStream fis = new BufferedInputStream(new FileInputStream(file), Compression.BLOCK_SIZE)) {
+            byte[] head = new byte[16];
+            fis.mark(head.length);
+            int headLength = fis.readNBytes(head, 0, head.length);
+            fis.reset();
+            Compression.Codec codec = Compression.choose(requested, head, headLength);
+
+            long size = file.length();
+            out.writeUTF("File found");
+            out.writeLong(size);
+            out.writeUTF(codec.name());
+            if (codec == Compression.Codec.NONE) {
+                copy(fis, out, size);
+            } else {
+                try (OutputStream zout = Compression.compress(out, codec)) {
+                    copy(fis, zout, size);
+                }
+            }
+            out.flush();
+        }
+    }
+
+    private static void copy(InputStream from, OutputStream to, long size) throws IOException {
+        byte[] buffer = new byte[8 * 1024];
+        long remaining = size;
+        while (remaining > 0) {
+            int read = from.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+                throw new EOFException();
+            }
+            to.write(buffer, 0, read);
+            remaining -= read;
+        }
+    }
+
+    /**
+     * delta-upload filename -> block signatures of the current copy, client sends the delta and sha256 -> "OK" | "WRONG"
+     * The new version is rebuilt into a temp file and swapped in atomically
+     */
+    private void deltaUploading(DataOutputStream out, DataInputStream in) throws IOException {
+        Path target = Path.of("server", in.readUTF());
+        int blockSize = Delta.writeSignatures(target, out);
+        out.flush();
+
+        Path tmp = Files.createTempFile(target.toAbsolutePath().getParent(), target.getFileName().toString(), ".delta");
+        try {
+            try (OutputStream fos = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+                Delta.apply(target, blockSize, in, fos);
+            }
+            String checksum = in.readUTF();
+            if (Checksums.sha256(tmp).equals(checksum)) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                stored(target, checksum);
+                out.writeUTF("OK");
+            } else {
+                out.writeUTF("WRONG");
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * dedup-upload filename size count id* -> missingCount index*, client sends (int length, bytes) per index -> "OK" | "WRONG"
+     * Only chunks the store has never seen cross the wire
+     */
+    private void dedupUploading(DataOutputStream out, DataInputStream in) throws IOException {
+        ChunkStore store = ChunkStore.shared();
+        String filename = in.readUTF();
+        long size = in.readLong();
+        int count = in.readInt();
+        List<String> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add(in.readUTF());
+        }
+        if (!ids.stream().allMatch(ChunkStore::isChunkId)) {
+            out.writeInt(0); // nothing to send
+            out.writeUTF("WRONG");
+            return;
+        }
+
+        List<Integer> missing = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        Set<String> pinned = new HashSet<>(); // one pin per distinct chunk, dropped once the manifest holds them
+        boolean ok = true;
+        try {
+            for (int i = 0; i < count; i++) {
+                String id = ids.get(i);
+                if (!seen.add(id)) {
+                    continue;
+                }
+                if (store.hasChunk(id)) {
+                    pinned.add(id);
+                } else {
+                    missing.add(i);
+                }
+            }
+            out.writeInt(missing.size());
+            for (int index : missing) {
+                out.writeInt(index);
+            }
+            out.flush();
+
+            byte[] buffer = new byte[Chunker.MAX_SIZE];
+            for (int index : missing) {
+                int length = in.readInt();
+                if (length < 0 || length > buffer.length) {
+                    throw new IOException("Wrong chunk length: " + length);
+                }
+                in.readFully(buffer, 0, length);
+                try {
+                    store.putChunk(ids.get(index), buffer, length);
+                    pinned.add(ids.get(index));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    ok = false;
+                }
+            }
+            if (ok) {
+                try {
+                    store.putManifest(filename, new Manifest(size, ids));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    ok = false;
+                }
+            }
+        } finally {
+            store.unpin(pinned);
+        }
+        out.writeUTF(ok ? "OK" : "WRONG");
+    }
+
+    /**
+     * dedup-download filename -> "File found" size bytes | "File not found"
+     */
+    private void dedupDownloading(DataOutputStream out, DataInputStream in) throws IOException {
+        ChunkStore store = ChunkStore.shared();
+        Manifest manifest = store.getManifest(in.readUTF());
+        if (manifest == null) {
+            out.writeUTF("File not found");
+            return;
+        }
+        out.writeUTF("File found");
+        out.writeLong(manifest.getSize());
+        for (String id : manifest.getChunkIds()) {
+            Files.copy(store.chunkPath(id), out);
+        }
+        out.flush();
+    }
+
+    /**
+     * resume-upload filename size -> offset crc32 of the bytes before it, client -> start (offset, or 0 when
+     * its file does not have that prefix), then the client sends size - start bytes -> "OK"
+     * An interrupted upload leaves filename.part and its journal for the next attempt
+     */
+    private void resumeUploading(DataOutputStream out, DataInputStream in) throws IOException {
+        Path target = Path.of("server", in.readUTF());
+        long size = in.readLong();
+        try (PartFile part = PartFile.open(target)) {
+            if (part.offset() > size) {
+                part.restart(); // from another version of the file
+            }
+            out.writeLong(part.offset());
+            out.writeLong(part.checksum());
+            out.flush();
+            if (in.readLong() != part.offset()) {
+                part.restart();
+            }
+            byte[] buffer = new byte[8 * 1024];
+            long remaining = size - part.offset();
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new EOFException();
+                }
+                part.write(buffer, 0, read);
+                remaining -= read;
+            }
+            part.commit();
+            changed(target);
+            out.writeUTF("OK");
+        }
+    }
+
+    /**
+     * resume-download filename offset crc32 -> "File found" size start, bytes from start | "File not found"
+     * start is the client's offset when the file still has the prefix the client holds, 0 otherwise
+     */
+    private void resumeDownloading(DataOutputStream out, DataInputStream in) throws IOException {
+        Path path = Path.of("server", in.readUTF());
+        long offset = in.readLong();
+        long checksum = in.readLong();
+        if (!Files.isRegularFile(path)) {
+            out.writeUTF("File not found");
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = offset <= size && Checksums.crc32(path, offset) == checksum ? offset : 0;
+            out.writeUTF("File found");
+            out.writeLong(size);
+            out.writeLong(position);
+            ByteBuffer buffer = ByteBuffer.allocate(8 * 1024);
+            while (position < size) {
+                buffer.clear();
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    break;
+                }
+                out.write(buffer.array(), 0, read);
+                position += read;
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * tree-upload dirname -> "READY" | error, client sends a TreeStream -> "OK" files | error
+     */
+    private void treeUploading(DataOutputStream out, DataInputStream in) throws IOException {
+        String dirname = in.readUTF();
+        Path target;
+        try {
+            target = TreeStream.resolve(Path.of("server"), dirname);
+        } catch (AccessDeniedException e) {
+            out.writeUTF("Access denied: " + dirname);
+            return;
+        }
+        out.writeUTF("READY");
+        try {
+            long files = TreeStream.read(in, target);
+            out.writeUTF("OK");
+            out.writeLong(files);
+        } catch (SocketException | EOFException e) {
+            throw e;
+        } catch (IOException e) {
+            e.printStackTrace();
+            out.writeUTF("Failed: " + e);
+        } finally {
+            ReadCache.shared().invalidateTree(target);
+            MetadataIndex.shared().rescan(target);
+        }
+    }
+
+    /**
+     * tree-download dirname -> "Directory found", TreeStream | "Directory not found"
+     */
+    private void treeDownloading(DataOutputStream out, DataInputStream in) throws IOException {
+        String dirname = in.readUTF();
+        Path source;
+        try {
+            source = TreeStream.resolve(Path.of("server"), dirname);
+        } catch (AccessDeniedException e) {
+            source = null;
+        }
+        if (source == null || !Files.isDirectory(source)) {
+            out.writeUTF("Directory not found");
+            return;
+        }
+        out.writeUTF("Directory found");
+        TreeStream.write(source, out);
+    }
+
+    /**
+     * changes cursor -> cursor snapshot more count, then per record: path deleted [directory size modified sha256].
+     * Records come in lsn order, a deleted path takes everything below it along; a snapshot lists
+     * the whole tree instead, for cursors the store has no history for. Checksums may be empty.
+     */
+    private void changes(DataOutputStream out, DataInputStream in) throws IOException {
+        MetaStore.Changes changes = MetaStore.shared().changes(in.readLong(), CHANGES_PAGE);
+        DataOutputStream buffered = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+        buffered.writeLong(changes.getCursor());
+        buffered.writeBoolean(changes.isSnapshot());
+        buffered.writeBoolean(changes.hasMore());
+        buffered.writeInt(changes.getRecords().size());
+        for (MetaStore.FileRecord record : changes.getRecords()) {
+            buffered.writeUTF(record.getPath());
+            buffered.writeBoolean(record.isDeleted());
+            if (!record.isDeleted()) {
+                buffered.writeBoolean(record.isDirectory());
+                buffered.writeLong(record.getSize());
+                buffered.writeLong(record.getModified());
+                buffered.writeUTF(record.getChecksum());
+            }
+        }
+        buffered.flush();
+    }
+
+    /**
+     * sync-push count, per file: path found [size modified] of the version the client last saw,
+     * then a TreeStream of the changed entries below the root
+     * -> "OK" | "Failed: ...", count, then per entry written: path found [directory size modified],
+     * then the number of refused files and their paths.
+     * A file that is no longer the version the client saw is refused like in sync-delete, so an
+     * upload never overwrites a change the client has not seen; the client turns it into a conflict.
+     * The records let the client tell its own writes from other people's in the next change list.
+     */
+    private void syncPush(DataOutputStream out, DataInputStream in) throws IOException {
+        int count = in.readInt();
+        Set<String> refused = new TreeSet<>();
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            boolean found = in.readBoolean();
+            long size = found ? in.readLong() : 0;
+            long modified = found ? in.readLong() : 0;
+            MetaStore.FileRecord record = MetaStore.shared().get(storeName(Path.of("server", name)));
+            if (record == null || record.isDirectory()) {
+                continue; // nothing to overwrite, a deleted file loses to the edit
+            }
+            if (!found || record.getSize() != size || record.getModified() != modified) {
+                refused.add(name);
+            }
+        }
+        List<String> received = new ArrayList<>();
+        String status = "OK";
+        try {
+            TreeStream.read(in, Path.of("server"), received, name -> !refused.contains(name));
+        } catch (SocketException | EOFException e) {
+            throw e;
+        } catch (IOException e) {
+            e.printStackTrace();
+            status = "Failed: " + e;
+        }
+        DataOutputStream buffered = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+        buffered.writeUTF(status);
+        buffered.writeInt(received.size());
+        for (String name : received) {
+            Path path = Path.of("server", name);
+            changed(path);
+            MetaStore.FileRecord record = MetaStore.shared().get(storeName(path));
+            buffered.writeUTF(name);
+            buffered.writeBoolean(record != null);
+            if (record != null) {
+                buffered.writeBoolean(record.isDirectory());
+                buffered.writeLong(record.getSize());
+                buffered.writeLong(record.getModified());
+            }
+        }
+        buffered.writeInt(refused.size());
+        for (String name : refused) {
+            buffered.writeUTF(name);
+        }
+        buffered.flush();
+    }
+
+    /**
+     * sync-pull count path... -> TreeStream of those of them that exist
+     */
+    private void syncPull(DataOutputStream out, DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            names.add(in.readUTF());
+        }
+        TreeStream.write(Path.of("server"), names, out);
+    }
+
+    /**
+     * sync-delete count, per entry: path directory size modified -> number deleted.
+     * A file is only deleted while it still has the size and mtime the client saw, a directory
+     * only when it is empty, so nothing the client never saw is lost; what stays shows up as a change.
+     */
+    private void syncDelete(DataOutputStream out, DataInputStream in) throws IOException {
+        int count = in.readInt();
+        int deleted = 0;
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            boolean directory = in.readBoolean();
+            long size = in.readLong();
+            long modified = in.readLong();
+            try {
+                TreeStream.resolve(Path.of("server"), name);
+            } catch (AccessDeniedException e) {
+                continue;
+            }
+            Path path = Path.of("server", name);
+            MetaStore.FileRecord record = MetaStore.shared().get(storeName(path));
+            if (record == null) {
+                deleted++; // gone already
+                continue;
+            }
+            if (record.isDirectory() != directory
+                    || !directory && (record.getSize() != size || record.getModified() != modified)) {
+                continue;
+            }
+            try {
+                Files.deleteIfExists(path);
+                deleted++;
+            } catch (DirectoryNotEmptyException e) {
+                continue;
+            }
+            changed(path);
+        }
+        out.writeInt(deleted);
+        out.flush();
+    }
+
+    /**
+     * stat filename -> "File found" size sha256 | "File not found"
+     */
+    private void stat(DataOutputStream out, DataInputStream in) throws IOException {
+        Path path = Path.of("server", in.readUTF());
+        String name = storeName(path);
+        MetaStore.FileRecord record = MetaStore.shared().get(name);
+        if (record == null || record.isDirectory()) {
+            out.writeUTF("File not found");
+            return;
+        }
+        String checksum = record.getChecksum();
+        if (checksum.isEmpty()) {
+            // hashed once per content version, then answered from the store
+            checksum = Checksums.sha256(path);
+            MetaStore.shared().setChecksum(name, record.getSize(), record.getModified(), checksum);
+        }
+        out.writeUTF("File found");
+        out.writeLong(record.getSize());
+        out.writeUTF(checksum);
+    }
+
+    /**
+     * Index and store learn about a new version of the file without waiting for the watcher,
+     * the read cache forgets the old one
+     */
+    private void changed(Path path) {
+        ReadCache.shared().invalidate(path);
+        MetadataIndex.shared().refresh(path);
+    }
+
+    /**
+     * Like {@link #changed(Path)}, the verified checksum is kept so stat does not hash the file again
+     */
+    private void stored(Path path, String checksum) {
+        changed(path);
+        MetaStore.FileRecord record = MetaStore.shared().get(storeName(path));
+        if (record != null) {
+            MetaStore.shared().setChecksum(record.getPath(), record.getSize(), record.getModified(), checksum);
+        }
+    }
+
+    private static String storeName(Path path) {
+        return Path.of("server").relativize(path.normalize()).toString();
+    }
+
+    /**
+     * range-download filename offset length -> "File found" length bytes | "File not found"
+     */
+    private void rangeDownloading(DataOutputStream out, DataInputStream in) throws IOException {
+        String filename = in.readUTF();
+        long offset = in.readLong();
+        long length = in.readLong();
+        Path path = Path.of("server", filename);
+        if (!allowed(filename) || !Files.isRegularFile(path)) {
+            out.writeUTF("File not found");
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            length = Math.max(0, Math.min(length, channel.size() - offset));
+            out.writeUTF("File found");
+            out.writeLong(length);
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            long position = offset;
+            long end = offset + length;
+            while (position < end) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    break;
+                }
+                out.write(buffer.array(), 0, read);
+                position += read;
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * range-upload filename totalSize offset length bytes -> "OK" | "WRONG"
+     * Ranges are written with positional writes into a pre-allocated filename.range
+     */
+    private void rangeUploading(DataOutputStream out, DataInputStream in) throws IOException {
+        String filename = in.readUTF();
+        long totalSize = in.readLong();
+        long offset = in.readLong();
+        long length = in.readLong();
+        if (offset < 0 || length < 0 || offset > totalSize - length) {
+            out.writeUTF("WRONG");
+            out.flush();
+            // the range bytes that follow cannot be told from the next command
+            throw new ProtocolException("Range " + offset + "+" + length + " outside " + totalSize);
+        }
+        Path part = allowed(filename) ? rangePart(filename) : null;
+        try (FileChannel channel = part != null
+                ? FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE) : null) {
+            if (channel != null && channel.size() > totalSize) {
+                channel.truncate(totalSize); // left over from a bigger upload
+            } else if (channel != null && channel.size() < totalSize) {
+                channel.write(ByteBuffer.allocate(1), totalSize - 1); // pre-allocate
+            }
+            byte[] buffer = new byte[64 * 1024];
+            long position = offset;
+            long remaining = length;
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new EOFException();
+                }
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+                while (channel != null && chunk.hasRemaining()) {
+                    position += channel.write(chunk, position);
+                }
+                remaining -= read; // a refused name is read to the end, the stream stays in step
+            }
+        }
+        out.writeUTF(part != null ? "OK" : "WRONG");
+    }
+
+    /**
+     * range-commit filename sha256 -> "OK" (part file verified and moved in place) | "WRONG"
+     */
+    private void rangeCommit(DataOutputStream out, DataInputStream in) throws IOException {
+        String filename = in.readUTF();
+        String checksum = in.readUTF();
+        if (!allowed(filename)) {
+            out.writeUTF("WRONG");
+            return;
+        }
+        Path part = rangePart(filename);
+        if (Files.isRegularFile(part) && Checksums.sha256(part).equals(checksum)) {
+            Files.move(part, Path.of("server", filename), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            stored(Path.of("server", filename), checksum);
+            out.writeUTF("OK");
+        } else {
+            Files.deleteIfExists(part);
+            out.writeUTF("WRONG");
+        }
+    }
+
+    /**
+     * False for names {@link TreeStream#resolve} refuses: absolute, leaving server/ or hidden
+     */
+    private static boolean allowed(String filename) throws IOException {
+        try {
+            TreeStream.resolve(Path.of("server"), filename);
+            return true;
+        } catch (AccessDeniedException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Not filename.part, that one belongs to resume-upload and keeps a journal of its own
+     */
+    private static Path rangePart(String filename) {
+        return Path.of("server", filename + ".range");
+    }
+
+    /**
+     * Many requests in flight, see {@link PipelineProtocol}.
+     * New requests are read whenever they are waiting in the socket, queued downloads are
+     * sent one chunk each in turn, so a big file does not hold back the small ones.
+     */
+    private void pipelining(DataInputStream in) throws IOException {
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(socket.getOutputStream(), PipelineProtocol.CHUNK_SIZE));
+        Map<Integer, PendingUpload> uploads = new HashMap<>();
+        Deque<PendingDownload> downloads = new ArrayDeque<>();
+        byte[] buffer = new byte[PipelineProtocol.CHUNK_SIZE];
+        boolean open = true;
+        boolean lost = false;
+        try {
+            while (open || !downloads.isEmpty()) {
+                while (open && (downloads.isEmpty() || in.available() > 0)) {
+                    if (downloads.isEmpty()) {
+                        out.flush(); // about to block on read
+                    }
+                    byte type = in.readByte();
+                    if (type == PipelineProtocol.END) {
+                        open = false;
+                        break;
+                    }
+                    int id = in.readInt();
+                    if (type == PipelineProtocol.DOWNLOAD) {
+                        File file = new File("server/" + in.readUTF());
+                        if (file.isFile()) {
+                            PendingDownload download = new PendingDownload(id, file);
+                            out.writeInt(id);
+                            out.writeByte(PipelineProtocol.FOUND);
+                            out.writeLong(download.remaining);
+                            downloads.add(download);
+                        } else {
+                            sendPipelineError(out, id, "File not found");
+                        }
+                    } else if (type == PipelineProtocol.UPLOAD) {
+                        PendingUpload upload = new PendingUpload(new File("server/" + in.readUTF()), in.readLong());
+                        uploads.put(id, upload);
+                        if (upload.remaining == 0) {
+                            completeUpload(out, id, uploads.remove(id));
+                        }
+                    } else if (type == PipelineProtocol.DATA) {
+                        int length = in.readInt();
+                        if (length < 0 || length > PipelineProtocol.CHUNK_SIZE) {
+                            sendPipelineError(out, id, "Wrong chunk length " + length);
+                            open = false; // the rest of the stream cannot be parsed
+                            lost = true;
+                            break;
+                        }
+                        in.readFully(buffer, 0, length);
+                        PendingUpload upload = uploads.get(id);
+                        if (upload == null) {
+                            sendPipelineError(out, id, "Upload not started");
+                        } else {
+                            upload.fos.write(buffer, 0, length);
+                            upload.remaining -= length;
+                            if (upload.remaining <= 0) {
+                                completeUpload(out, id, uploads.remove(id));
+                            }
+                        }
+                    } else {
+                        sendPipelineError(out, id, "Unknown request type " + type);
+                    }
+                }
+
+                PendingDownload download = downloads.poll();
+                if (download != null) {
+                    int read = download.fis.read(buffer);
+                    if (read > 0) {
+                        out.writeInt(download.id);
+                        out.writeByte(PipelineProtocol.DATA);
+                        out.writeInt(read);
+                        out.write(buffer, 0, read);
+                        download.remaining -= read;
+                    }
+                    if (read < 0 || download.remaining <= 0) {
+                        download.fis.close();
+                        out.writeInt(download.id);
+                        out.writeByte(PipelineProtocol.DONE);
+                    } else {
+                        downloads.add(download);
+                    }
+                }
+            }
+            out.writeInt(0);
+            out.writeByte(PipelineProtocol.END);
+            out.flush();
+            if (lost) {
+                throw new ProtocolException("Pipeline stream is out of sync");
+            }
+        } finally {
+            for (PendingDownload download : downloads) {
+                download.fis.close();
+            }
+            for (PendingUpload upload : uploads.values()) {
+                upload.fos.close();
+            }
+        }
+    }
+
+    private void completeUpload(DataOutputStream out, int id, PendingUpload upload) throws IOException {
+        upload.fos.close();
+        changed(upload.file.toPath());
+        out.writeInt(id);
+        out.writeByte(PipelineProtocol.DONE);
+    }
+
+    private void sendPipelineError(DataOutputStream out, int id, String message) throws IOException {
+        out.writeInt(id);
+        out.writeByte(PipelineProtocol.ERROR);
+        out.writeUTF(message);
+    }
+
+    private static class PendingDownload {
+        private final int id;
+        private final FileInputStream fis;
+        private long remaining;
+
+        PendingDownload(int id, File file) throws IOException {
+            this.id = id;
+            this.fis = new FileInputStream(file);
+            this.remaining = file.length();
+        }
+    }
+
+    private static class PendingUpload {
+        private final File file;
+        private final FileOutputStream fos;
+        private long remaining;
+
+        PendingUpload(File file, long size) throws IOException {
+            this.file = file;
+            this.fos = new FileOutputStream(file);
+            this.remaining = size;
+        }
+    }
+
     private void disconnected() {
         try {
             socket.close();
@@ -1,5 +1,7 @@
 package ru.onetwo33.server;
 
+import ru.onetwo33.server.index.MetadataIndex;
+
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.concurrent.ExecutorService;
@@ -8,7 +10,9 @@ import java.util.concurrent.Executors;
 public class Server {
 
     public Server() {
-        ExecutorService service = Executors.newFixedThreadPool(4);
+        MetadataIndex.shared(); // opens the store and indexes the tree before the first client
+        // parallel range transfers hold several connections per client
+        ExecutorService service = Executors.newCachedThreadPool();
         try (ServerSocket server = new ServerSocket(6789)) {
             while (true) {
                 Socket socket = server.accept();
@@ -0,0 +1,250 @@
+package ru.onetwo33.server.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Contents of small hot files in direct buffers, shared by all servers.
+ * Entries are kept in LRU order under a byte budget; a new file only pushes out the
+ * least recently used one when a frequency sketch says it is asked for more often
+ * (TinyLFU admission), so one pass over many cold files does not flush the hot ones.
+ * Admission is decided before the file is read, a rejected file is served from disk by the caller.
+ * An entry is only served while the file still has the size and mtime it was read with,
+ * writers invalidate it explicitly too.
+ * Budget and the largest cached file come from -Dstorage.cache.bytes and -Dstorage.cache.maxFile.
+ */
+public class ReadCache {
+
+    private static ReadCache shared;
+
+    private final long budget;
+    private final long maxFile;
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private final FrequencySketch sketch = new FrequencySketch();
+
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long rejections;
+
+    private static class Entry {
+        private final ByteBuffer data;
+        private final long modified;
+
+        Entry(ByteBuffer data, long modified) {
+            this.data = data;
+            this.modified = modified;
+        }
+    }
+
+    public ReadCache(long budget, long maxFile) {
+        this.budget = budget;
+        this.maxFile = Math.min(maxFile, budget);
+    }
+
+    public static synchronized ReadCache shared() {
+        if (shared == null) {
+            shared = new ReadCache(Long.getLong("storage.cache.bytes", 64L * 1024 * 1024),
+                    Long.getLong("storage.cache.maxFile", 1024 * 1024));
+        }
+        return shared;
+    }
+
+    /**
+     * Read-only view of the file contents, null when the file is too big to be cached
+     * or loses admission; the caller streams it from disk then.
+     * Stats the file, callers that already know size and mtime use the other overload.
+     */
+    public ByteBuffer get(Path path) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        if (!attrs.isRegularFile()) {
+            return null;
+        }
+        return get(path, attrs.size(), attrs.lastModifiedTime().toMillis());
+    }
+
+    public ByteBuffer get(Path path, long size, long modified) throws IOException {
+        if (size > maxFile) {
+            return null;
+        }
+        Path key = path.toAbsolutePath().normalize();
+        synchronized (this) {
+            sketch.increment(key.hashCode());
+            Entry entry = entries.get(key);
+            if (entry != null && entry.data.capacity() == size && entry.modified == modified) {
+                hits++;
+                return entry.data.duplicate();
+            }
+            if (entry != null) {
+                remove(key); // changed behind our back
+            }
+            misses++;
+            if (victims(key, size) == null) {
+                rejections++;
+                return null; // not worth a read and a direct buffer
+            }
+        }
+        ByteBuffer data = load(key, size);
+        synchronized (this) {
+            admit(key, new Entry(data, modified));
+        }
+        return data.duplicate();
+    }
+
+    public synchronized void invalidate(Path path) {
+        remove(path.toAbsolutePath().normalize());
+    }
+
+    /**
+     * Drops the path and everything below it, for rm and copy over a directory
+     */
+    public synchronized void invalidateTree(Path path) {
+        Path prefix = path.toAbsolutePath().normalize();
+        Iterator<Map.Entry<Path, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, Entry> e = it.next();
+            if (e.getKey().startsWith(prefix)) {
+                bytes -= e.getValue().data.capacity();
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized String stats() {
+        long requests = hits + misses;
+        return String.format("entries %d, %d of %d bytes, hits %d, misses %d (%.1f%% hit), evictions %d, rejected %d",
+                entries.size(), bytes, budget, hits, misses, requests == 0 ? 0.0 : hits * 100.0 / requests,
+                evictions, rejections);
+    }
+
+    /**
+     * Checked again after the read, other files may have come in meanwhile
+     */
+    private void admit(Path key, Entry entry) {
+        remove(key); // loaded twice concurrently, keep the newer read
+        List<Path> victims = victims(key, entry.data.capacity());
+        if (victims == null) {
+            rejections++;
+            return;
+        }
+        for (Path victim : victims) {
+            remove(victim);
+            evictions++;
+        }
+        entries.put(key, entry);
+        bytes += entry.data.capacity();
+    }
+
+    /**
+     * Least recently used entries that make room for size bytes, null when one of them
+     * is asked for at least as often as the newcomer; nothing is evicted here
+     */
+    private List<Path> victims(Path key, long size) {
+        List<Path> victims = new ArrayList<>();
+        int frequency = sketch.frequency(key.hashCode());
+        long free = budget - bytes;
+        Iterator<Map.Entry<Path, Entry>> it = entries.entrySet().iterator();
+        while (free < size && it.hasNext()) {
+            Map.Entry<Path, Entry> victim = it.next();
+            if (frequency <= sketch.frequency(victim.getKey().hashCode())) {
+                return null;
+            }
+            victims.add(victim.getKey());
+            free += victim.getValue().data.capacity();
+        }
+        return victims;
+    }
+
+    private void remove(Path key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            bytes -= entry.data.capacity();
+        }
+    }
+
+    private static ByteBuffer load(Path path, long size) throws IOException {
+        ByteBuffer data = ByteBuffer.allocateDirect((int) size);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (data.hasRemaining() && channel.read(data) != -1) {
+                // read until full
+            }
+        }
+        if (data.hasRemaining()) {
+            throw new IOException(path + " shrank while reading");
+        }
+        return data.flip().asReadOnlyBuffer();
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters, halved every {@link #SAMPLE} increments so
+     * that old popularity fades
+     */
+    private static class FrequencySketch {
+
+        private static final int WIDTH = 1 << 14;
+        private static final int DEPTH = 4;
+        private static final int MAX = 15;
+        private static final int SAMPLE = WIDTH * 10;
+        private static final int[] SEEDS = {0x97cb3127, 0x2f0f5f3b, 0x7a1e83c5, 0x4c4b7e8f};
+
+        private final byte[][] counters = new byte[DEPTH][WIDTH];
+        private int increments;
+
+        void increment(int hash) {
+            for (int i = 0; i < DEPTH; i++) {
+                int index = index(hash, i);
+                if (counters[i][index] < MAX) {
+                    counters[i][index]++;
+                }
+            }
+            if (++increments == SAMPLE) {
+                for (byte[] row : counters) {
+                    for (int j = 0; j < WIDTH; j++) {
+                        row[j] >>= 1;
+                    }
+                }
+                increments = 0;
+            }
+        }
+
+        int frequency(int hash) {
+            int min = MAX;
+            for (int i = 0; i < DEPTH; i++) {
+                min = Math.min(min, counters[i][index(hash, i)]);
+            }
+            return min;
+        }
+
+        private static int index(int hash, int row) {
+            int h = hash * SEEDS[row];
+            return (h ^ (h >>> 17)) & (WIDTH - 1);
+        }
+    }
+}
@@ -0,0 +1,709 @@
+package ru.onetwo33.server.db;
+
+import ru.onetwo33.common.Checksums;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Embedded metadata database: users and one record per file (size, times, owner, sha256).
+ * Everything lives in memory, every change is appended to meta.log as
+ * [length][lsn][type][fields][crc32] and replayed on start; a torn tail is cut off.
+ * Writers apply the change at once and get a future that completes when the record is on disk,
+ * a single committer thread writes all queued records with one write and one fsync.
+ * The log is rewritten as a snapshot on start when most of it is superseded records.
+ * <p>
+ * Every record remembers the lsn that wrote it and a delete leaves a tombstone, so
+ * {@link #changes(long, int)} can answer "what changed since lsn N" for sync clients. The oldest
+ * tombstones are dropped on compaction once there are too many; a cursor from before that gets a full listing.
+ */
+public class MetaStore implements Closeable {
+
+    private static final byte PUT_FILE = 1;
+    private static final byte DELETE_FILE = 2;
+    private static final byte PUT_USER = 3;
+    private static final byte HORIZON = 4;
+
+    private static final int MAX_BATCH = 4096;
+    private static final int MAX_RECORD_SIZE = 256 * 1024; // three writeUTF strings and a few longs at most
+    private static final int COMPACT_MIN_RECORDS = 10_000;
+    private static final int MAX_TOMBSTONES = 100_000;
+    private static final int PBKDF2_ITERATIONS = 65_536;
+
+    public static class FileRecord {
+
+        private final String path;
+        private final boolean directory;
+        private final long size;
+        private final long created;
+        private final long modified;
+        private final String owner;
+        private final String checksum;
+        private final boolean deleted;
+        private long lsn;
+
+        public FileRecord(String path, boolean directory, long size, long created, long modified, String owner, String checksum) {
+            this(path, directory, size, created, modified, owner, checksum, false);
+        }
+
+        private FileRecord(String path, boolean directory, long size, long created, long modified, String owner,
+                           String checksum, boolean deleted) {
+            this.path = path;
+            this.directory = directory;
+            this.size = size;
+            this.created = created;
+            this.modified = modified;
+            this.owner = owner;
+            this.checksum = checksum;
+            this.deleted = deleted;
+        }
+
+        private static FileRecord tombstone(String path) {
+            return new FileRecord(path, false, 0, 0, 0, "", "", true);
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getCreated() {
+            return created;
+        }
+
+        public long getModified() {
+            return modified;
+        }
+
+        /**
+         * Empty when the file was not created by a logged in user
+         */
+        public String getOwner() {
+            return owner;
+        }
+
+        /**
+         * sha256 of the content, empty until somebody computed it for this size and mtime
+         */
+        public String getChecksum() {
+            return checksum;
+        }
+
+        /**
+         * Only in a change list: the path and everything below it was deleted
+         */
+        public boolean isDeleted() {
+            return deleted;
+        }
+
+        /**
+         * Sequence number of the change that wrote this version
+         */
+        public long getLsn() {
+            return lsn;
+        }
+    }
+
+    /**
+     * One page of {@link #changes(long, int)}
+     */
+    public static class Changes {
+
+        private final List<FileRecord> records;
+        private final long cursor;
+        private final boolean snapshot;
+        private final boolean more;
+
+        private Changes(List<FileRecord> records, long cursor, boolean snapshot, boolean more) {
+            this.records = records;
+            this.cursor = cursor;
+            this.snapshot = snapshot;
+            this.more = more;
+        }
+
+        /**
+         * Current versions and tombstones in lsn order
+         */
+        public List<FileRecord> getRecords() {
+            return records;
+        }
+
+        /**
+         * Where the next call continues
+         */
+        public long getCursor() {
+            return cursor;
+        }
+
+        /**
+         * The history since the cursor is gone: the records are the whole tree and
+         * whatever is not among them was deleted
+         */
+        public boolean isSnapshot() {
+            return snapshot;
+        }
+
+        public boolean hasMore() {
+            return more;
+        }
+    }
+
+    private static class User {
+
+        private final String name;
+        private final byte[] salt;
+        private final byte[] hash;
+
+        private User(String name, byte[] salt, byte[] hash) {
+            this.name = name;
+            this.salt = salt;
+            this.hash = hash;
+        }
+    }
+
+    private static class Pending {
+
+        private final byte[] record;
+        private final long lsn;
+        private final CompletableFuture<Long> committed = new CompletableFuture<>();
+
+        private Pending(byte[] record, long lsn) {
+            this.record = record;
+            this.lsn = lsn;
+        }
+    }
+
+    private static MetaStore shared;
+
+    private final Path log;
+    private final FileLock lock;
+    private final NavigableMap<String, FileRecord> files = new TreeMap<>();
+    private final NavigableMap<String, FileRecord> tombstones = new TreeMap<>();
+    private final NavigableMap<Long, FileRecord> changes = new TreeMap<>(); // lsn -> live record or tombstone
+    private final Map<String, User> users = new HashMap<>();
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final SecureRandom random = new SecureRandom();
+
+    private FileChannel channel;
+    private long lsn;
+    private long replayed;
+    private long horizon; // changes up to here are no longer known one by one
+    private volatile boolean closed;
+
+    public MetaStore(Path dir) throws IOException {
+        this.log = Files.createDirectories(dir).resolve("meta.log");
+        this.lock = lock(dir.resolve("meta.lock"));
+        try {
+            long valid = replay();
+            if (replayed > COMPACT_MIN_RECORDS && replayed > 2L * (files.size() + tombstones.size() + users.size())) {
+                compact();
+            } else {
+                channel = FileChannel.open(log, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                channel.truncate(valid);
+                channel.position(valid);
+            }
+        } catch (IOException e) {
+            lock.channel().close();
+            throw e;
+        }
+        Thread committer = new Thread(this::commitLoop, "meta-store-commit");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * One store per directory: compaction replaces meta.log, so the lock is kept on a file beside it.
+     * A second server on the same directory fails here instead of interleaving its records,
+     * so the storage and telnet servers cannot run side by side on one storage directory.
+     */
+    private static FileLock lock(Path file) throws IOException {
+        FileChannel lockChannel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            FileLock lock = lockChannel.tryLock();
+            if (lock != null) {
+                return lock;
+            }
+        } catch (OverlappingFileLockException e) {
+            // held by another store of this process
+        }
+        lockChannel.close();
+        throw new IOException(String.format("%s is used by another server process. The storage and telnet "
+                + "servers share this metadata store, start only one of them per storage directory",
+                file.getParent()));
+    }
+
+    /**
+     * Store of the "server" directory in server/.meta, shared by all servers of the process
+     */
+    public static synchronized MetaStore shared() {
+        if (shared == null) {
+            try {
+                shared = new MetaStore(Path.of("server", ".meta"));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(shared::close));
+        }
+        return shared;
+    }
+
+    public synchronized boolean isEmpty() {
+        return files.isEmpty();
+    }
+
+    /**
+     * Paths are relative to the storage root with "/" separators, "" is the root itself
+     */
+    public synchronized FileRecord get(String path) {
+        return files.get(path);
+    }
+
+    public synchronized boolean exists(String path) {
+        return path.isEmpty() || files.containsKey(path);
+    }
+
+    public synchronized boolean isDirectory(String path) {
+        FileRecord record = files.get(path);
+        return path.isEmpty() || record != null && record.directory;
+    }
+
+    /**
+     * All file records in path order, parents before their children
+     */
+    public synchronized List<FileRecord> files() {
+        return new ArrayList<>(files.values());
+    }
+
+    /**
+     * Paths strictly below the given directory
+     */
+    public synchronized List<String> paths(String dir) {
+        if (dir.isEmpty()) {
+            return new ArrayList<>(files.keySet());
+        }
+        return new ArrayList<>(files.subMap(dir + "/", dir + "0").keySet()); // '0' follows '/'
+    }
+
+    public synchronized long lastLsn() {
+        return lsn;
+    }
+
+    /**
+     * Records and tombstones written after the cursor, at most limit of them.
+     * A cursor the store can not answer for (older than the kept history, or from a store that
+     * has since been wiped) gets a snapshot of every record instead.
+     */
+    public synchronized Changes changes(long since, int limit) {
+        if (since < horizon || since > lsn) {
+            return new Changes(files(), lsn, true, false);
+        }
+        List<FileRecord> records = new ArrayList<>();
+        long cursor = since;
+        for (FileRecord record : changes.tailMap(since, false).values()) {
+            if (records.size() == limit) {
+                return new Changes(records, cursor, false, true);
+            }
+            records.add(record);
+            cursor = record.lsn;
+        }
+        return new Changes(records, lsn, false, false);
+    }
+
+    /**
+     * Records new size and times, the owner stays and the checksum stays while size and mtime do
+     */
+    public synchronized CompletableFuture<Long> putFile(String path, boolean directory, long size, long created, long modified) {
+        FileRecord old = files.get(path);
+        String owner = old != null ? old.owner : "";
+        String checksum = old != null && old.size == size && old.modified == modified ? old.checksum : "";
+        if (old != null && old.directory == directory && old.size == size && old.created == created && old.modified == modified) {
+            return CompletableFuture.completedFuture(lsn); // nothing changed
+        }
+        return put(new FileRecord(path, directory, size, created, modified, owner, checksum));
+    }
+
+    public synchronized CompletableFuture<Long> setOwner(String path, String owner) {
+        FileRecord old = files.get(path);
+        if (old == null) {
+            return CompletableFuture.completedFuture(lsn);
+        }
+        return put(new FileRecord(path, old.directory, old.size, old.created, old.modified, owner, old.checksum));
+    }
+
+    /**
+     * Only kept when the record still describes the content that was hashed
+     */
+    public synchronized CompletableFuture<Long> setChecksum(String path, long size, long modified, String checksum) {
+        FileRecord old = files.get(path);
+        if (old == null || old.size != size || old.modified != modified) {
+            return CompletableFuture.completedFuture(lsn);
+        }
+        return put(new FileRecord(path, old.directory, old.size, old.created, old.modified, old.owner, checksum));
+    }
+
+    /**
+     * Removes the path and everything below it
+     */
+    public synchronized CompletableFuture<Long> deleteFile(String path) {
+        if (!files.containsKey(path) && paths(path).isEmpty()) {
+            return CompletableFuture.completedFuture(lsn);
+        }
+        CompletableFuture<Long> committed = append(DELETE_FILE, out -> out.writeUTF(path));
+        applyDelete(path, lsn);
+        return committed;
+    }
+
+    public synchronized boolean hasUser(String name) {
+        return users.containsKey(name);
+    }
+
+    /**
+     * False when the name is taken, the future completes once the user is durable
+     */
+    public CompletableFuture<Boolean> addUser(String name, String password) {
+        byte[] salt = new byte[16];
+        random.nextBytes(salt);
+        byte[] hash = hash(password, salt); // slow on purpose, outside the lock
+        synchronized (this) {
+            if (users.containsKey(name)) {
+                return CompletableFuture.completedFuture(false);
+            }
+            users.put(name, new User(name, salt, hash));
+            return append(PUT_USER, out -> {
+                out.writeUTF(name);
+                out.writeUTF(Checksums.toHex(salt));
+                out.writeUTF(Checksums.toHex(hash));
+            }).thenApply(lsn -> true);
+        }
+    }
+
+    public boolean authenticate(String name, String password) {
+        User user;
+        synchronized (this) {
+            user = users.get(name);
+        }
+        return user != null && MessageDigest.isEqual(user.hash, hash(password, user.salt));
+    }
+
+    private CompletableFuture<Long> put(FileRecord record) {
+        CompletableFuture<Long> committed = append(PUT_FILE, out -> writeFile(out, record));
+        applyPut(record, lsn);
+        return committed;
+    }
+
+    private interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Called with the lock held, so log order is apply order
+     */
+    private CompletableFuture<Long> append(byte type, Writer writer) {
+        if (closed) {
+            throw new IllegalStateException("Metadata store is closed");
+        }
+        Pending pending = new Pending(encode(++lsn, type, writer), lsn);
+        queue.add(pending);
+        return pending.committed;
+    }
+
+    private static byte[] encode(long lsn, byte type, Writer writer) {
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(body);
+            out.writeLong(lsn);
+            out.writeByte(type);
+            writer.write(out);
+            CRC32 crc = new CRC32();
+            crc.update(body.toByteArray());
+
+            ByteArrayOutputStream record = new ByteArrayOutputStream(body.size() + 8);
+            DataOutputStream framed = new DataOutputStream(record);
+            framed.writeInt(body.size());
+            body.writeTo(framed);
+            framed.writeInt((int) crc.getValue());
+            return record.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeFile(DataOutputStream out, FileRecord record) throws IOException {
+        out.writeUTF(record.path);
+        out.writeBoolean(record.directory);
+        out.writeLong(record.size);
+        out.writeLong(record.created);
+        out.writeLong(record.modified);
+        out.writeUTF(record.owner);
+        out.writeUTF(record.checksum);
+    }
+
+    /**
+     * Group commit: whatever queued up during the previous fsync goes out with the next one
+     */
+    private void commitLoop() {
+        List<Pending> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+            commit(batch);
+            batch.clear();
+        }
+    }
+
+    private void commit(List<Pending> batch) {
+        int length = 0;
+        for (Pending pending : batch) {
+            length += pending.record.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (Pending pending : batch) {
+            buffer.put(pending.record);
+        }
+        buffer.flip();
+        try {
+            synchronized (log) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            }
+            for (Pending pending : batch) {
+                pending.committed.complete(pending.lsn);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            for (Pending pending : batch) {
+                pending.committed.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Returns the length of the intact prefix of the log
+     */
+    private long replay() throws IOException {
+        if (!Files.exists(log)) {
+            return 0;
+        }
+        long size = Files.size(log);
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(log), 1 << 16))) {
+            while (true) {
+                int length = in.readInt();
+                if (length < 9 || length > MAX_RECORD_SIZE || length > size - valid - 8) {
+                    break; // a corrupt length, the record cannot be read
+                }
+                byte[] body = new byte[length];
+                in.readFully(body);
+                CRC32 crc = new CRC32();
+                crc.update(body);
+                if ((int) crc.getValue() != in.readInt()) {
+                    break;
+                }
+                apply(new DataInputStream(new ByteArrayInputStream(body)));
+                valid += 8 + length;
+                replayed++;
+            }
+        } catch (EOFException e) {
+            // torn last record, everything before it is good
+        }
+        return valid;
+    }
+
+    private void apply(DataInputStream in) throws IOException {
+        long recordLsn = in.readLong();
+        lsn = Math.max(lsn, recordLsn); // a compacted log is in lsn order per record kind only
+        byte type = in.readByte();
+        if (type == PUT_FILE) {
+            FileRecord record = new FileRecord(in.readUTF(), in.readBoolean(), in.readLong(), in.readLong(),
+                    in.readLong(), in.readUTF(), in.readUTF());
+            applyPut(record, recordLsn);
+        } else if (type == DELETE_FILE) {
+            applyDelete(in.readUTF(), recordLsn);
+        } else if (type == PUT_USER) {
+            String name = in.readUTF();
+            users.put(name, new User(name, hex(in.readUTF()), hex(in.readUTF())));
+        } else if (type == HORIZON) {
+            horizon = Math.max(horizon, in.readLong());
+        }
+    }
+
+    private void applyPut(FileRecord record, long recordLsn) {
+        record.lsn = recordLsn;
+        FileRecord old = files.put(record.path, record);
+        if (old != null) {
+            changes.remove(old.lsn);
+        }
+        changes.put(recordLsn, record); // a tombstone on the path stays, it still stands for the old children
+    }
+
+    private void applyDelete(String path, long recordLsn) {
+        forget(files, path);
+        forget(tombstones, path); // the new tombstone covers the ones below it
+        FileRecord tombstone = FileRecord.tombstone(path);
+        tombstone.lsn = recordLsn;
+        tombstones.put(path, tombstone);
+        changes.put(recordLsn, tombstone);
+    }
+
+    /**
+     * Removes the path and everything below it from the map and from the change list
+     */
+    private void forget(NavigableMap<String, FileRecord> map, String path) {
+        List<FileRecord> gone = new ArrayList<>();
+        if (path.isEmpty()) {
+            gone.addAll(map.values());
+            map.clear();
+        } else {
+            FileRecord record = map.remove(path);
+            if (record != null) {
+                gone.add(record);
+            }
+            Map<String, FileRecord> below = map.subMap(path + "/", path + "0");
+            gone.addAll(below.values());
+            below.clear();
+        }
+        for (FileRecord record : gone) {
+            changes.remove(record.lsn);
+        }
+    }
+
+    /**
+     * Writes the live records and tombstones into a new log, each under the lsn that wrote it, and swaps it in.
+     * Replaying them in lsn order gives the same tree, so change cursors stay valid.
+     */
+    private void compact() throws IOException {
+        int excess = tombstones.size() - MAX_TOMBSTONES;
+        for (Iterator<FileRecord> it = changes.values().iterator(); excess > 0 && it.hasNext(); ) {
+            FileRecord record = it.next();
+            if (record.deleted) {
+                it.remove();
+                tombstones.remove(record.path);
+                horizon = Math.max(horizon, record.lsn);
+                excess--;
+            }
+        }
+        Path tmp = log.resolveSibling("meta.log.tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            // carries the last lsn too, so sequence numbers never go back
+            write(out, encode(lsn, HORIZON, o -> o.writeLong(horizon)));
+            for (FileRecord record : changes.values()) {
+                if (record.deleted) {
+                    write(out, encode(record.lsn, DELETE_FILE, o -> o.writeUTF(record.path)));
+                } else {
+                    write(out, encode(record.lsn, PUT_FILE, o -> writeFile(o, record)));
+                }
+            }
+            for (User user : users.values()) {
+                write(out, encode(lsn, PUT_USER, o -> {
+                    o.writeUTF(user.name);
+                    o.writeUTF(Checksums.toHex(user.salt));
+                    o.writeUTF(Checksums.toHex(user.hash));
+                }));
+            }
+            out.force(true);
+        }
+        Files.move(tmp, log, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        channel = FileChannel.open(log, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        System.out.printf("Metadata log compacted: %d records -> %d%n", replayed, changes.size() + users.size());
+    }
+
+    private static void write(FileChannel out, byte[] record) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    private static byte[] hash(String password, byte[] salt) {
+        try {
+            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, PBKDF2_ITERATIONS, 256);
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] hex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    /**
+     * Waits for the queued records to reach the disk
+     */
+    @Override
+    public void close() {
+        Pending last;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            last = new Pending(new byte[0], lsn); // committed after everything queued before it
+            queue.add(last);
+        }
+        try {
+            last.committed.get(5, TimeUnit.SECONDS);
+            synchronized (log) {
+                channel.close();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        try {
+            lock.channel().close(); // releases the lock
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
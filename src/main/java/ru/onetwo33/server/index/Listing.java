@@ -0,0 +1,159 @@
+package ru.onetwo33.server.index;
+
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.StringJoiner;
+
+/**
+ * Telnet "ls" and "find" rendered from the metadata index
+ */
+public final class Listing {
+
+    public static final int PAGE_SIZE = 100;
+    public static final String USAGE = "Usage: ls [-l] [-s name|size|date] [-r] [page]";
+    public static final String FIND_USAGE = "Usage: find [name] [-type f|d] [-size +N|-N] [-newer yyyy-MM-dd] [-older yyyy-MM-dd] [-page N]";
+
+    private Listing() {
+    }
+
+    /**
+     * cmds[0] is "ls", the result has no trailing line break
+     */
+    public static String ls(MetadataIndex index, Path dir, String[] cmds) {
+        boolean details = false;
+        boolean reversed = false;
+        MetadataIndex.Order order = MetadataIndex.Order.NAME;
+        int page = 1;
+        try {
+            for (int i = 1; i < cmds.length; i++) {
+                if ("-l".equals(cmds[i])) {
+                    details = true;
+                } else if ("-r".equals(cmds[i])) {
+                    reversed = true;
+                } else if ("-s".equals(cmds[i]) && i + 1 < cmds.length) {
+                    order = MetadataIndex.Order.valueOf(cmds[++i].toUpperCase());
+                } else {
+                    page = Integer.parseInt(cmds[i]);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            return USAGE;
+        }
+        if (page < 1) {
+            return USAGE;
+        }
+
+        MetadataIndex.Page result = index.list(dir, order, reversed, (page - 1) * PAGE_SIZE, PAGE_SIZE);
+        if (result == null) {
+            return String.format("Directory %s is not indexed", dir.getFileName());
+        }
+        StringJoiner out = new StringJoiner(details ? "\n" : " ");
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+        for (MetadataIndex.Entry entry : result.getEntries()) {
+            if (details) {
+                out.add(String.format("%s %12d %s %s %s", entry.isDirectory() ? "d" : "-", entry.getSize(),
+                        format.format(new Date(entry.getCreated())), format.format(new Date(entry.getModified())),
+                        entry.getName()));
+            } else {
+                out.add(entry.getName());
+            }
+        }
+        int pages = (result.getTotal() + PAGE_SIZE - 1) / PAGE_SIZE;
+        if (pages > 1) {
+            return out.toString().concat(String.format("\npage %d of %d, %d entries", page, pages, result.getTotal()));
+        }
+        return out.toString();
+    }
+
+    /**
+     * Paths under dir whose name contains the pattern, cmds[0] is "find"
+     */
+    public static String find(MetadataIndex index, Path dir, String[] cmds) {
+        String pattern = "";
+        Boolean directory = null;
+        long minSize = 0;
+        long maxSize = Long.MAX_VALUE;
+        long newerThan = 0;
+        long olderThan = Long.MAX_VALUE;
+        int page = 1;
+        SimpleDateFormat day = new SimpleDateFormat("yyyy-MM-dd");
+        try {
+            for (int i = 1; i < cmds.length; i++) {
+                if (!cmds[i].startsWith("-")) {
+                    pattern = cmds[i];
+                } else if (i + 1 == cmds.length) {
+                    return FIND_USAGE;
+                } else if ("-type".equals(cmds[i])) {
+                    String type = cmds[++i];
+                    if (!"f".equals(type) && !"d".equals(type)) {
+                        return FIND_USAGE;
+                    }
+                    directory = "d".equals(type);
+                } else if ("-size".equals(cmds[i])) {
+                    String size = cmds[++i];
+                    if (size.startsWith("-")) {
+                        maxSize = parseSize(size.substring(1));
+                    } else {
+                        minSize = parseSize(size.startsWith("+") ? size.substring(1) : size);
+                    }
+                } else if ("-newer".equals(cmds[i])) {
+                    newerThan = day.parse(cmds[++i]).getTime();
+                } else if ("-older".equals(cmds[i])) {
+                    olderThan = day.parse(cmds[++i]).getTime();
+                } else if ("-page".equals(cmds[i])) {
+                    page = Integer.parseInt(cmds[++i]);
+                } else {
+                    return FIND_USAGE;
+                }
+            }
+        } catch (IllegalArgumentException | ParseException e) {
+            return FIND_USAGE;
+        }
+        if (page < 1) {
+            return FIND_USAGE;
+        }
+
+        MetadataIndex.Query query = new MetadataIndex.Query(pattern, directory, minSize, maxSize, newerThan, olderThan);
+        MetadataIndex.Page result = index.find(dir, query, (page - 1) * PAGE_SIZE, PAGE_SIZE);
+        if (result == null) {
+            return String.format("Directory %s is not indexed", dir.getFileName());
+        }
+        if (result.getTotal() == 0) {
+            return "Nothing found";
+        }
+        int pages = (result.getTotal() + PAGE_SIZE - 1) / PAGE_SIZE;
+        if (page > pages) {
+            return String.format("No page %d, %d found on %d pages", page, result.getTotal(), pages);
+        }
+        String prefix = index.get(dir).getPath();
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+        StringJoiner out = new StringJoiner("\n");
+        for (MetadataIndex.Entry entry : result.getEntries()) {
+            String path = prefix.isEmpty() ? entry.getPath() : entry.getPath().substring(prefix.length() + 1);
+            out.add(String.format("%s %12d %s %s", entry.isDirectory() ? "d" : "-", entry.getSize(),
+                    format.format(new Date(entry.getModified())), path));
+        }
+        if (pages > 1) {
+            return out.toString().concat(String.format("\npage %d of %d, %d found", page, pages, result.getTotal()));
+        }
+        return out.toString();
+    }
+
+    /**
+     * Bytes with an optional k, m or g suffix
+     */
+    private static long parseSize(String size) {
+        String lower = size.toLowerCase();
+        long unit = 1;
+        if (lower.endsWith("k")) {
+            unit = 1024;
+        } else if (lower.endsWith("m")) {
+            unit = 1024 * 1024;
+        } else if (lower.endsWith("g")) {
+            unit = 1024 * 1024 * 1024;
+        }
+        return Long.parseLong(unit == 1 ? lower : lower.substring(0, lower.length() - 1)) * unit;
+    }
+}
@@ -0,0 +1,618 @@
+package ru.onetwo33.server.index;
+
+import ru.onetwo33.server.db.MetaStore;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * In-memory copy of the metadata of a tree: name, size, created and modified time per entry,
+ * directories carry the size of everything below them. Loaded from the {@link MetaStore} log on
+ * start (the tree is walked only when the store is empty), kept fresh by a WatchService and by
+ * {@link #refresh}/{@link #rescan} calls from the write paths, every change is written through
+ * to the store. A listing never touches the disk. Hidden entries (.store, .meta, ...) are left out.
+ */
+public class MetadataIndex {
+
+    /**
+     * SIZE and DATE are stable sorts of the NAME order, ties stay sorted by name
+     */
+    public enum Order {
+        NAME(Comparator.comparing(Entry::getName)),
+        SIZE(Comparator.comparingLong(Entry::getSize)),
+        DATE(Comparator.comparingLong(Entry::getModified));
+
+        private final Comparator<Entry> comparator;
+
+        Order(Comparator<Entry> comparator) {
+            this.comparator = comparator;
+        }
+    }
+
+    public static class Entry {
+
+        private final String name;
+        private final boolean directory;
+        private final Entry parent;
+        private final Map<String, Entry> children;
+
+        private long size; // whole subtree for directories
+        private long created;
+        private long modified;
+        private Entry[][] sorted; // per order, dropped when a child changes
+
+        private Entry(String name, boolean directory, Entry parent) {
+            this.name = name;
+            this.directory = directory;
+            this.parent = parent;
+            this.children = directory ? new TreeMap<>() : null; // NAME order for free
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getCreated() {
+            return created;
+        }
+
+        public long getModified() {
+            return modified;
+        }
+
+        /**
+         * Path relative to the indexed root, "/" separated
+         */
+        public String getPath() {
+            if (parent == null) {
+                return "";
+            }
+            String parentPath = parent.getPath();
+            return parentPath.isEmpty() ? name : parentPath.concat("/").concat(name);
+        }
+
+        private boolean isUnder(Entry dir) {
+            for (Entry e = parent; e != null; e = e.parent) {
+                if (e == dir) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * find filters, 0 and Long.MAX_VALUE mean no bound
+     */
+    public static class Query {
+
+        private final String pattern;
+        private final Boolean directory;
+        private final long minSize;
+        private final long maxSize;
+        private final long newerThan;
+        private final long olderThan;
+
+        public Query(String pattern, Boolean directory, long minSize, long maxSize, long newerThan, long olderThan) {
+            this.pattern = pattern;
+            this.directory = directory;
+            this.minSize = minSize;
+            this.maxSize = maxSize;
+            this.newerThan = newerThan;
+            this.olderThan = olderThan;
+        }
+
+        private boolean matches(Entry entry) {
+            return (directory == null || directory == entry.directory)
+                    && entry.size >= minSize && entry.size <= maxSize
+                    && entry.modified >= newerThan && entry.modified <= olderThan;
+        }
+
+        private String key() {
+            return pattern + '\0' + directory + '\0' + minSize + '\0' + maxSize + '\0' + newerThan + '\0' + olderThan;
+        }
+    }
+
+    public static class Page {
+
+        private final List<Entry> entries;
+        private final int total;
+
+        private Page(List<Entry> entries, int total) {
+            this.entries = entries;
+            this.total = total;
+        }
+
+        public List<Entry> getEntries() {
+            return entries;
+        }
+
+        public int getTotal() {
+            return total;
+        }
+    }
+
+    private static MetadataIndex shared;
+
+    private final Path root;
+    private final Entry rootEntry;
+    private final MetaStore store;
+    private final WatchService watcher;
+    private final Thread thread;
+    private final Map<WatchKey, Path> watched = new HashMap<>();
+    private final TrigramIndex names = new TrigramIndex();
+
+    private long version; // bumped on every change, invalidates the cached find result
+    private Entry lastScope;
+    private String lastQuery;
+    private long lastVersion;
+    private Entry[] lastResult;
+
+    public MetadataIndex(Path root, MetaStore store) throws IOException {
+        this.root = root.toAbsolutePath().normalize();
+        this.rootEntry = new Entry("", true, null);
+        this.store = store;
+        this.watcher = root.getFileSystem().newWatchService();
+        synchronized (this) {
+            if (store.isEmpty()) {
+                load(this.root, rootEntry);
+            } else {
+                restore();
+            }
+        }
+        this.thread = new Thread(this::watch, "metadata-index");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Index of the "server" directory, shared by all servers of the process
+     */
+    public static synchronized MetadataIndex shared() {
+        if (shared == null) {
+            try {
+                shared = new MetadataIndex(Path.of("server"), MetaStore.shared());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return shared;
+    }
+
+    public synchronized Entry get(Path path) {
+        return find(path.toAbsolutePath().normalize());
+    }
+
+    /**
+     * One page of a directory, null when the directory is not indexed
+     */
+    public synchronized Page list(Path dir, Order order, boolean reversed, int offset, int limit) {
+        Entry entry = find(dir.toAbsolutePath().normalize());
+        if (entry == null || !entry.directory) {
+            return null;
+        }
+        Entry[] sorted = sorted(entry, order);
+        List<Entry> page = new ArrayList<>(Math.max(0, Math.min(limit, sorted.length - offset)));
+        for (int i = offset; i < sorted.length && i < offset + limit; i++) {
+            page.add(sorted[reversed ? sorted.length - 1 - i : i]);
+        }
+        return new Page(page, sorted.length);
+    }
+
+    /**
+     * One page of the entries under dir matching the query, sorted by path; null when dir is not indexed.
+     * The full result of the last query is kept, so paging through it does not search again.
+     */
+    public synchronized Page find(Path dir, Query query, int offset, int limit) {
+        Entry scope = find(dir.toAbsolutePath().normalize());
+        if (scope == null || !scope.directory) {
+            return null;
+        }
+        String key = query.key();
+        if (scope != lastScope || !key.equals(lastQuery) || version != lastVersion) {
+            List<Map.Entry<String, Entry>> matches = new ArrayList<>();
+            if (query.pattern.length() < TrigramIndex.GRAM) {
+                collect(scope, query, matches); // no trigram to narrow it down, walk only the scope
+            } else {
+                for (Entry entry : names.search(query.pattern)) {
+                    if (entry.isUnder(scope) && query.matches(entry)) {
+                        matches.add(Map.entry(entry.getPath(), entry));
+                    }
+                }
+            }
+            matches.sort(Map.Entry.comparingByKey());
+            lastResult = new Entry[matches.size()];
+            for (int i = 0; i < lastResult.length; i++) {
+                lastResult[i] = matches.get(i).getValue();
+            }
+            lastScope = scope;
+            lastQuery = key;
+            lastVersion = version;
+        }
+        List<Entry> page = new ArrayList<>();
+        for (int i = offset; i < lastResult.length && i < offset + limit; i++) {
+            page.add(lastResult[i]);
+        }
+        return new Page(page, lastResult.length);
+    }
+
+    private void collect(Entry dir, Query query, List<Map.Entry<String, Entry>> matches) {
+        String needle = query.pattern.toLowerCase(Locale.ROOT);
+        for (Entry child : dir.children.values()) {
+            if (query.matches(child) && child.name.toLowerCase(Locale.ROOT).contains(needle)) {
+                matches.add(Map.entry(child.getPath(), child));
+            }
+            if (child.directory) {
+                collect(child, query, matches);
+            }
+        }
+    }
+
+    private Entry[] sorted(Entry dir, Order order) {
+        if (dir.sorted == null) {
+            dir.sorted = new Entry[Order.values().length][];
+        }
+        Entry[] sorted = dir.sorted[order.ordinal()];
+        if (sorted == null) {
+            if (order == Order.NAME) {
+                sorted = dir.children.values().toArray(new Entry[0]);
+            } else {
+                sorted = sorted(dir, Order.NAME).clone();
+                Arrays.sort(sorted, order.comparator);
+            }
+            dir.sorted[order.ordinal()] = sorted;
+        }
+        return sorted;
+    }
+
+    /**
+     * Write hook: picks up a created, changed or deleted entry without waiting for the watcher
+     */
+    public synchronized void refresh(Path path) {
+        update(path.toAbsolutePath().normalize(), false);
+    }
+
+    /**
+     * Write hook for whole trees (copy into an existing directory): the subtree is indexed again
+     */
+    public synchronized void rescan(Path path) {
+        update(path.toAbsolutePath().normalize(), true);
+    }
+
+    private void update(Path path, boolean rescan) {
+        if (!path.startsWith(root) || isHidden(path)) {
+            return;
+        }
+        if (path.equals(root)) {
+            if (rescan) {
+                for (Entry child : new ArrayList<>(rootEntry.children.values())) {
+                    remove(child);
+                }
+                load(root, rootEntry);
+                prune(rootEntry);
+            }
+            return;
+        }
+        Entry parent = find(path.getParent());
+        if (parent == null) {
+            update(path.getParent(), true); // the new parent brings this path along
+            return;
+        }
+        String name = path.getFileName().toString();
+        Entry existing = parent.children.get(name);
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            if (existing != null) {
+                remove(existing);
+                store.deleteFile(existing.getPath());
+            }
+            return;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        if (existing != null && existing.directory && attrs.isDirectory() && !rescan) {
+            setTimes(existing, attrs);
+            changed(existing);
+            persist(existing, 0);
+            return;
+        }
+        if (existing != null && !existing.directory && !attrs.isDirectory()) {
+            setTimes(existing, attrs); // in place, the store keeps owner and checksum
+            resize(existing, attrs.size());
+            changed(existing);
+            persist(existing, attrs.size());
+            return;
+        }
+        if (existing != null) {
+            remove(existing);
+        }
+        if (attrs.isDirectory()) {
+            Entry dir = add(parent, name, attrs);
+            load(path, dir);
+            prune(dir);
+        } else {
+            add(parent, name, attrs);
+        }
+    }
+
+    private void load(Path dir, Entry entry) {
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                private final Map<Path, Entry> entries = new HashMap<>(Map.of(dir, entry));
+
+                @Override
+                public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attrs) throws IOException {
+                    if (isHidden(path)) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    if (!path.equals(dir)) {
+                        entries.put(path, add(entries.get(path.getParent()), path.getFileName().toString(), attrs));
+                    } else {
+                        setTimes(entry, attrs);
+                    }
+                    register(path);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+                    if (!isHidden(path)) {
+                        add(entries.get(path.getParent()), path.getFileName().toString(), attrs);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path path, IOException e) {
+                    return FileVisitResult.CONTINUE; // gone while walking
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path path, IOException e) {
+                    entries.remove(path);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private Entry add(Entry parent, String name, BasicFileAttributes attrs) {
+        Entry entry = new Entry(name, attrs.isDirectory(), parent);
+        setTimes(entry, attrs);
+        parent.children.put(name, entry);
+        names.add(entry);
+        changed(entry);
+        if (!entry.directory) {
+            resize(entry, attrs.size());
+        }
+        persist(entry, entry.directory ? 0 : attrs.size());
+        return entry;
+    }
+
+    private void persist(Entry entry, long size) {
+        store.putFile(entry.getPath(), entry.directory, size, entry.created, entry.modified);
+    }
+
+    /**
+     * Drops the store records below dir that the fresh walk did not find
+     */
+    private void prune(Entry dir) {
+        for (String path : store.paths(dir.getPath())) {
+            if (find(root.resolve(path)) == null) {
+                store.deleteFile(path);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the tree from the store records. Every record is checked with one stat:
+     * entries changed or removed while the server was down are indexed again, so a stale
+     * size or checksum is never served. A directory whose mtime moved is walked again for new entries.
+     */
+    private void restore() throws IOException {
+        Map<String, Entry> dirs = new HashMap<>();
+        dirs.put("", rootEntry);
+        register(root);
+        List<String> gone = new ArrayList<>();
+        List<Path> stale = new ArrayList<>();
+        for (MetaStore.FileRecord record : store.files()) {
+            String path = record.getPath();
+            int slash = path.lastIndexOf('/');
+            Entry parent = dirs.get(slash < 0 ? "" : path.substring(0, slash));
+            if (parent == null) {
+                continue; // below a directory that is gone
+            }
+            Path file = root.resolve(path);
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (NoSuchFileException e) {
+                gone.add(path);
+                continue;
+            }
+            if (attrs.isDirectory() != record.isDirectory()) {
+                gone.add(path); // drops the records below it too
+                stale.add(file);
+                continue;
+            }
+            if (attrs.lastModifiedTime().toMillis() != record.getModified()
+                    || (!attrs.isDirectory() && attrs.size() != record.getSize())) {
+                stale.add(file);
+            }
+            Entry entry = new Entry(path.substring(slash + 1), record.isDirectory(), parent);
+            entry.created = record.getCreated();
+            entry.modified = record.getModified();
+            if (entry.directory) {
+                register(file);
+                dirs.put(path, entry);
+            }
+            parent.children.put(entry.name, entry);
+            names.add(entry);
+            if (!entry.directory) {
+                resize(entry, record.getSize());
+            }
+        }
+        for (String path : gone) {
+            store.deleteFile(path);
+        }
+        // the root has no record to compare, its listing is checked directly
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(root)) {
+            for (Path entry : entries) {
+                if (!isHidden(entry) && !rootEntry.children.containsKey(entry.getFileName().toString())) {
+                    stale.add(entry);
+                }
+            }
+        }
+        for (Path path : stale) {
+            update(path, true);
+        }
+    }
+
+    private void register(Path dir) throws IOException {
+        watched.put(dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), dir);
+    }
+
+    private void remove(Entry entry) {
+        entry.parent.children.remove(entry.name);
+        unindex(entry);
+        version++;
+        for (Entry e = entry.parent; e != null; e = e.parent) {
+            e.size -= entry.size;
+            e.sorted = null;
+            if (e.parent != null) {
+                e.parent.sorted = null;
+            }
+        }
+    }
+
+    private void unindex(Entry entry) {
+        names.remove(entry);
+        if (entry.children != null) {
+            for (Entry child : entry.children.values()) {
+                unindex(child);
+            }
+        }
+    }
+
+    private void resize(Entry entry, long size) {
+        version++;
+        long delta = size - entry.size;
+        for (Entry e = entry; e != null; e = e.parent) {
+            e.size += delta;
+            if (e.parent != null) {
+                e.parent.sorted = null;
+            }
+        }
+    }
+
+    private void changed(Entry entry) {
+        version++;
+        if (entry.parent != null) {
+            entry.parent.sorted = null;
+        }
+    }
+
+    private static void setTimes(Entry entry, BasicFileAttributes attrs) {
+        entry.created = attrs.creationTime().toMillis();
+        entry.modified = attrs.lastModifiedTime().toMillis();
+    }
+
+    private Entry find(Path path) {
+        if (!path.startsWith(root)) {
+            return null;
+        }
+        Entry entry = rootEntry;
+        for (Path name : root.relativize(path)) {
+            if (name.toString().isEmpty()) {
+                continue; // relativize of root to itself
+            }
+            if (entry.children == null || (entry = entry.children.get(name.toString())) == null) {
+                return null;
+            }
+        }
+        return entry;
+    }
+
+    private boolean isHidden(Path path) {
+        return !path.equals(root) && path.getFileName().toString().startsWith(".");
+    }
+
+    /**
+     * Stops the watcher thread; the store is not touched, its owner closes it afterwards
+     */
+    public void close() throws IOException {
+        watcher.close();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            synchronized (this) {
+                Path dir = watched.get(key);
+                if (dir != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        try {
+                            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                                update(dir, true); // events were lost, read the directory again
+                            } else {
+                                update(dir.resolve((Path) event.context()), false);
+                            }
+                        } catch (ClosedWatchServiceException e) {
+                            return;
+                        } catch (RuntimeException e) {
+                            e.printStackTrace(); // one bad event must not stop the watcher
+                        }
+                    }
+                }
+                if (!key.reset()) {
+                    watched.remove(key);
+                }
+            }
+        }
+    }
+}
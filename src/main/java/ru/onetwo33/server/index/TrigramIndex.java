@@ -0,0 +1,89 @@
+package ru.onetwo33.server.index;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Case-insensitive substring search over entry names: every name is posted under each of its
+ * trigrams, a query intersects the postings of its own trigrams and checks the survivors.
+ * Patterns shorter than a trigram match every name they are contained in by a scan.
+ * Guarded by the owning {@link MetadataIndex}.
+ */
+class TrigramIndex {
+
+    static final int GRAM = 3;
+
+    private final Map<Long, Set<MetadataIndex.Entry>> postings = new HashMap<>();
+    private final Set<MetadataIndex.Entry> all = new HashSet<>();
+
+    void add(MetadataIndex.Entry entry) {
+        all.add(entry);
+        for (long trigram : trigrams(lower(entry.getName()))) {
+            postings.computeIfAbsent(trigram, t -> new HashSet<>()).add(entry);
+        }
+    }
+
+    void remove(MetadataIndex.Entry entry) {
+        all.remove(entry);
+        for (long trigram : trigrams(lower(entry.getName()))) {
+            Set<MetadataIndex.Entry> posting = postings.get(trigram);
+            if (posting != null && posting.remove(entry) && posting.isEmpty()) {
+                postings.remove(trigram);
+            }
+        }
+    }
+
+    /**
+     * Entries whose name contains the pattern, in no particular order
+     */
+    List<MetadataIndex.Entry> search(String pattern) {
+        String needle = lower(pattern);
+        Collection<MetadataIndex.Entry> candidates = all;
+        Set<Long> trigrams = trigrams(needle);
+        List<Set<MetadataIndex.Entry>> sets = new ArrayList<>();
+        for (long trigram : trigrams) {
+            Set<MetadataIndex.Entry> posting = postings.get(trigram);
+            if (posting == null) {
+                return Collections.emptyList();
+            }
+            sets.add(posting);
+        }
+        if (!sets.isEmpty()) {
+            sets.sort((a, b) -> Integer.compare(a.size(), b.size()));
+            candidates = sets.get(0); // rarest trigram first, the rest only filter it
+            sets = sets.subList(1, sets.size());
+        }
+        List<MetadataIndex.Entry> result = new ArrayList<>();
+        outer:
+        for (MetadataIndex.Entry entry : candidates) {
+            for (Set<MetadataIndex.Entry> set : sets) {
+                if (!set.contains(entry)) {
+                    continue outer;
+                }
+            }
+            if (lower(entry.getName()).contains(needle)) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    private static Set<Long> trigrams(String s) {
+        Set<Long> result = new HashSet<>();
+        for (int i = 0; i + GRAM <= s.length(); i++) {
+            result.add(((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2));
+        }
+        return result;
+    }
+
+    private static String lower(String s) {
+        return s.toLowerCase(Locale.ROOT);
+    }
+}
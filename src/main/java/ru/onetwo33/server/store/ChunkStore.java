@@ -0,0 +1,235 @@
+package ru.onetwo33.server.store;
+
+import ru.onetwo33.common.Checksums;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed store under server/.store:
+ * chunks/ab/abcd... - chunk bytes named by SHA-256, manifests/name - logical files.
+ * Chunks are reference counted by manifests, a chunk without references is deleted.
+ * An upload pins its chunks from hasChunk/putChunk until the manifest holds them, see {@link #unpin}.
+ */
+public class ChunkStore {
+
+    private static ChunkStore shared;
+
+    private final Path chunks;
+    private final Path manifests;
+    private final Map<String, Integer> refs = new HashMap<>();
+    private final Map<String, Integer> pins = new HashMap<>(); // chunks of uploads without a manifest yet
+
+    public ChunkStore(Path root) throws IOException {
+        Path store = root.resolve(".store");
+        this.chunks = Files.createDirectories(store.resolve("chunks"));
+        this.manifests = Files.createDirectories(store.resolve("manifests")).toAbsolutePath().normalize();
+        recover();
+    }
+
+    /**
+     * Store of the "server" directory, shared by all servers of the process
+     */
+    public static synchronized ChunkStore shared() {
+        if (shared == null) {
+            try {
+                shared = new ChunkStore(Path.of("server"));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * A chunk id is a SHA-256 in lowercase hex, nothing else may become a path below chunks/
+     */
+    public static boolean isChunkId(String id) {
+        if (id.length() != 64) {
+            return false;
+        }
+        for (int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A stored chunk is pinned, so a manifest released meanwhile cannot delete it
+     */
+    public synchronized boolean hasChunk(String id) throws IOException {
+        if (!refs.containsKey(checkId(id)) && !Files.exists(chunkPath(id))) {
+            return false;
+        }
+        pins.merge(id, 1, Integer::sum);
+        return true;
+    }
+
+    /**
+     * Writes a chunk unless it is already stored; the bytes must hash to the id.
+     * Pins the chunk like {@link #hasChunk} once it returns normally.
+     */
+    public void putChunk(String id, byte[] data, int length) throws IOException {
+        checkId(id);
+        var digest = Checksums.sha256();
+        digest.update(data, 0, length);
+        if (!Checksums.toHex(digest.digest()).equals(id)) {
+            throw new IOException("Chunk checksum mismatch: " + id);
+        }
+        Path path = chunkPath(id);
+        synchronized (this) {
+            pins.merge(id, 1, Integer::sum);
+        }
+        try {
+            if (Files.exists(path)) {
+                return;
+            }
+            Files.createDirectories(path.getParent());
+            Path tmp = Files.createTempFile(path.getParent(), id, ".tmp");
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                out.write(data, 0, length);
+            }
+            Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            unpin(List.of(id));
+            throw e;
+        }
+    }
+
+    /**
+     * Drops the pins taken by hasChunk/putChunk, after putManifest or when the upload failed.
+     * A chunk that is neither pinned nor referenced is deleted.
+     */
+    public synchronized void unpin(Collection<String> ids) throws IOException {
+        for (String id : ids) {
+            if (pins.computeIfPresent(id, (k, v) -> v > 1 ? v - 1 : null) == null && !refs.containsKey(id)) {
+                Files.deleteIfExists(chunkPath(id));
+            }
+        }
+    }
+
+    public Path chunkPath(String id) throws IOException {
+        checkId(id);
+        return chunks.resolve(id.substring(0, 2)).resolve(id);
+    }
+
+    private static String checkId(String id) throws IOException {
+        if (!isChunkId(id)) {
+            throw new IOException("Invalid chunk id");
+        }
+        return id;
+    }
+
+    public synchronized Manifest getManifest(String name) throws IOException {
+        Path path = manifestPath(name);
+        return Files.exists(path) ? Manifest.read(path) : null;
+    }
+
+    /**
+     * Saves the manifest, taking references on its chunks and dropping the ones of the replaced version
+     */
+    public synchronized void putManifest(String name, Manifest manifest) throws IOException {
+        for (String id : manifest.getChunkIds()) {
+            if (!Files.exists(chunkPath(id))) {
+                throw new IOException("Missing chunk " + id);
+            }
+        }
+        Manifest previous = getManifest(name);
+        Path path = manifestPath(name);
+        Files.createDirectories(path.getParent());
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        manifest.write(tmp);
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        retain(manifest.getChunkIds());
+        if (previous != null) {
+            release(previous.getChunkIds());
+        }
+    }
+
+    /**
+     * Copy without touching chunk bytes
+     */
+    public synchronized boolean cloneManifest(String source, String target) throws IOException {
+        Manifest manifest = getManifest(source);
+        if (manifest == null) {
+            return false;
+        }
+        putManifest(target, manifest);
+        return true;
+    }
+
+    public synchronized boolean deleteManifest(String name) throws IOException {
+        Manifest manifest = getManifest(name);
+        if (manifest == null) {
+            return false;
+        }
+        Files.delete(manifestPath(name));
+        release(manifest.getChunkIds());
+        return true;
+    }
+
+    private void retain(List<String> ids) {
+        for (String id : ids) {
+            refs.merge(id, 1, Integer::sum);
+        }
+    }
+
+    private void release(List<String> ids) throws IOException {
+        for (String id : ids) {
+            Path path = chunkPath(id);
+            Integer count = refs.computeIfPresent(id, (k, v) -> v > 1 ? v - 1 : null);
+            if (count == null && !pins.containsKey(id)) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds reference counts from the manifests and drops chunks nobody references
+     */
+    private void recover() throws IOException {
+        try (Stream<Path> stream = Files.walk(manifests)) {
+            for (Path path : stream.filter(Files::isRegularFile).collect(Collectors.toList())) {
+                if (path.toString().endsWith(".tmp")) {
+                    Files.delete(path);
+                } else {
+                    try {
+                        retain(Manifest.read(path).getChunkIds());
+                    } catch (IOException e) {
+                        System.err.println("Skipping manifest " + path + ": " + e.getMessage());
+                    }
+                }
+            }
+        }
+        try (Stream<Path> stream = Files.walk(chunks)) {
+            for (Path path : stream.filter(Files::isRegularFile).collect(Collectors.toList())) {
+                if (!refs.containsKey(path.getFileName().toString())) {
+                    Files.delete(path);
+                }
+            }
+        }
+        System.out.printf("Chunk store: %d chunks referenced%n", refs.size());
+    }
+
+    private Path manifestPath(String name) throws IOException {
+        Path path = manifests.resolve(name).normalize();
+        if (!path.startsWith(manifests) || path.equals(manifests)) {
+            throw new AccessDeniedException(name);
+        }
+        return path;
+    }
+}
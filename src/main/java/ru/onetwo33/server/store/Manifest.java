@@ -0,0 +1,60 @@
+package ru.onetwo33.server.store;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Logical file in the chunk store: its size and the ordered chunk ids.
+ * Stored as text, size on the first line, one chunk id per line.
+ */
+public class Manifest {
+
+    private final long size;
+    private final List<String> chunkIds;
+
+    public Manifest(long size, List<String> chunkIds) {
+        this.size = size;
+        this.chunkIds = Collections.unmodifiableList(new ArrayList<>(chunkIds));
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public List<String> getChunkIds() {
+        return chunkIds;
+    }
+
+    /**
+     * IOException for a manifest that is not a size followed by valid chunk ids
+     */
+    public static Manifest read(Path path) throws IOException {
+        List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+        if (lines.isEmpty()) {
+            throw new IOException("Empty manifest " + path);
+        }
+        List<String> ids = lines.subList(1, lines.size());
+        for (String id : ids) {
+            if (!ChunkStore.isChunkId(id)) {
+                throw new IOException("Invalid chunk id in manifest " + path);
+            }
+        }
+        try {
+            return new Manifest(Long.parseLong(lines.get(0)), ids);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid size in manifest " + path);
+        }
+    }
+
+    public void write(Path path) throws IOException {
+        List<String> lines = new ArrayList<>(chunkIds.size() + 1);
+        lines.add(String.valueOf(size));
+        lines.addAll(chunkIds);
+        Files.write(path, lines, StandardCharsets.UTF_8);
+    }
+}
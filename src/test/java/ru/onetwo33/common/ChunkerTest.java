@@ -0,0 +1,73 @@
+package ru.onetwo33.common;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.onetwo33.server.store.ChunkStore;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChunkerTest {
+
+    @TempDir
+    Path dir;
+
+    private static byte[] random(int size, long seed) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    void chunksCoverTheFileAndAreNamedBySha256() throws Exception {
+        byte[] content = random(1024 * 1024, 1);
+        Path file = Files.write(dir.resolve("data.bin"), content);
+
+        List<Chunker.Chunk> chunks = Chunker.split(file);
+
+        long offset = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            Chunker.Chunk chunk = chunks.get(i);
+            assertEquals(offset, chunk.getOffset());
+            assertTrue(chunk.getLength() <= Chunker.MAX_SIZE);
+            if (i < chunks.size() - 1) {
+                assertTrue(chunk.getLength() >= Chunker.MIN_SIZE);
+            }
+            byte[] bytes = Arrays.copyOfRange(content, (int) offset, (int) offset + chunk.getLength());
+            assertEquals(Checksums.toHex(Checksums.sha256().digest(bytes)), chunk.getId());
+            assertTrue(ChunkStore.isChunkId(chunk.getId()));
+            offset += chunk.getLength();
+        }
+        assertEquals(content.length, offset);
+    }
+
+    @Test
+    void insertOnlyChangesNearbyChunks() throws Exception {
+        byte[] content = random(1024 * 1024, 2);
+        byte[] edited = new byte[content.length + 100];
+        System.arraycopy(content, 0, edited, 0, 500_000);
+        System.arraycopy(random(100, 3), 0, edited, 500_000, 100);
+        System.arraycopy(content, 500_000, edited, 500_100, content.length - 500_000);
+
+        List<Chunker.Chunk> before = Chunker.split(Files.write(dir.resolve("before.bin"), content));
+        List<Chunker.Chunk> after = Chunker.split(Files.write(dir.resolve("after.bin"), edited));
+
+        Set<String> known = new HashSet<>();
+        before.forEach(chunk -> known.add(chunk.getId()));
+        long changed = after.stream().filter(chunk -> !known.contains(chunk.getId())).count();
+        assertTrue(changed <= 3, "changed chunks: " + changed);
+    }
+
+    @Test
+    void emptyFileHasNoChunks() throws Exception {
+        assertTrue(Chunker.split(Files.createFile(dir.resolve("empty"))).isEmpty());
+    }
+}
@@ -0,0 +1,82 @@
+package ru.onetwo33.common;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DeltaTest {
+
+    @TempDir
+    Path dir;
+
+    private static byte[] random(int size, long seed) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Runs signatures, delta and apply, returns the rebuilt file and the delta size
+     */
+    private byte[] roundTrip(Path basis, Path source, long[] deltaSize) throws IOException {
+        ByteArrayOutputStream signatures = new ByteArrayOutputStream();
+        int blockSize = Delta.writeSignatures(basis, new DataOutputStream(signatures));
+
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(delta)) {
+            Delta.writeDelta(source, new DataInputStream(new ByteArrayInputStream(signatures.toByteArray())), out);
+        }
+        deltaSize[0] = delta.size();
+
+        ByteArrayOutputStream rebuilt = new ByteArrayOutputStream();
+        Delta.apply(basis, blockSize, new DataInputStream(new ByteArrayInputStream(delta.toByteArray())), rebuilt);
+        return rebuilt.toByteArray();
+    }
+
+    @Test
+    void rebuildsAnEditedFileFromFewBytes() throws Exception {
+        byte[] old = random(512 * 1024, 1);
+        byte[] edited = new byte[old.length + 1000];
+        System.arraycopy(old, 0, edited, 0, 200_000);
+        System.arraycopy(random(1000, 2), 0, edited, 200_000, 1000);
+        System.arraycopy(old, 200_000, edited, 201_000, old.length - 200_000);
+        Path basis = Files.write(dir.resolve("old"), old);
+        Path source = Files.write(dir.resolve("new"), edited);
+        long[] deltaSize = new long[1];
+
+        assertArrayEquals(edited, roundTrip(basis, source, deltaSize));
+        assertTrue(deltaSize[0] < 16 * 1024, "delta size: " + deltaSize[0]);
+    }
+
+    @Test
+    void sendsEverythingWithoutBasis() throws Exception {
+        byte[] content = random(100_000, 3);
+        Path source = Files.write(dir.resolve("new"), content);
+        long[] deltaSize = new long[1];
+
+        assertArrayEquals(content, roundTrip(dir.resolve("missing"), source, deltaSize));
+        assertTrue(deltaSize[0] > content.length);
+    }
+
+    @Test
+    void keepsAShortTail() throws Exception {
+        byte[] old = random(300_000, 4);
+        byte[] edited = new byte[old.length + 7];
+        System.arraycopy(old, 0, edited, 0, old.length);
+        Path basis = Files.write(dir.resolve("old"), old);
+        Path source = Files.write(dir.resolve("new"), edited);
+
+        assertArrayEquals(edited, roundTrip(basis, source, new long[1]));
+    }
+}
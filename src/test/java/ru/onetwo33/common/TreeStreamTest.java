@@ -0,0 +1,70 @@
+package ru.onetwo33.common;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class TreeStreamTest {
+
+    @TempDir
+    Path root;
+
+    @Test
+    void copiesATree(@TempDir Path target) throws Exception {
+        Path source = Files.createDirectories(root.resolve("src/sub"));
+        Random random = new Random(1);
+        for (int i = 0; i < 300; i++) {
+            byte[] data = new byte[random.nextInt(4096)];
+            random.nextBytes(data);
+            Files.write(source.resolve("f" + i), data);
+        }
+        byte[] big = new byte[2 * 1024 * 1024 + 17];
+        random.nextBytes(big);
+        Files.write(source.resolve("big"), big);
+        Files.createDirectories(root.resolve("src/.meta"));
+        Files.writeString(root.resolve("src/.meta/meta.log"), "hidden");
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        assertEquals(301, TreeStream.write(root.resolve("src"), stream));
+        assertEquals(301, TreeStream.read(new ByteArrayInputStream(stream.toByteArray()), target));
+
+        for (int i = 0; i < 300; i++) {
+            assertArrayEquals(Files.readAllBytes(source.resolve("f" + i)), Files.readAllBytes(target.resolve("sub/f" + i)));
+        }
+        assertArrayEquals(big, Files.readAllBytes(target.resolve("sub/big")));
+        assertFalse(Files.exists(target.resolve(".meta")));
+    }
+
+    @Test
+    void resolvesPathsBelowTheRoot() throws Exception {
+        Path base = root.toAbsolutePath().normalize();
+
+        assertEquals(base.resolve("a/b.txt"), TreeStream.resolve(root, "a/b.txt"));
+        assertEquals(base.resolve("a/b.c"), TreeStream.resolve(root, "a/b.c"));
+    }
+
+    @Test
+    void rejectsPathsLeavingTheRoot() {
+        for (String name : new String[]{"", "../x", "a/../../x", "/etc/passwd", "a/..", "a\0b"}) {
+            assertThrows(AccessDeniedException.class, () -> TreeStream.resolve(root, name), name);
+        }
+    }
+
+    @Test
+    void rejectsHiddenComponents() {
+        for (String name : new String[]{".meta/meta.log", "a/.store/x", ".users", "a/../b.txt", "./a"}) {
+            assertThrows(AccessDeniedException.class, () -> TreeStream.resolve(root, name), name);
+        }
+    }
+}
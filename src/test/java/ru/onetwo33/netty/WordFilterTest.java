@@ -0,0 +1,87 @@
+package ru.onetwo33.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WordFilterTest {
+
+    private static String mask(WordFilter filter, String message) {
+        ByteBuf buf = Unpooled.copiedBuffer(message, StandardCharsets.UTF_8);
+        try {
+            filter.mask(buf);
+            return buf.toString(StandardCharsets.UTF_8);
+        } finally {
+            buf.release();
+        }
+    }
+
+    @Test
+    void masksTermsIgnoringAsciiCase() {
+        WordFilter filter = new WordFilter(List.of("bad", "worse"));
+
+        assertEquals("a *** and ***** day", mask(filter, "a BaD and worse day"));
+    }
+
+    @Test
+    void masksOverlappingTerms() {
+        WordFilter filter = new WordFilter(List.of("abc", "bcd"));
+
+        assertEquals("****e", mask(filter, "abcde"));
+    }
+
+    @Test
+    void leavesCleanMessagesAlone() {
+        WordFilter filter = new WordFilter(List.of("bad"));
+        ByteBuf buf = Unpooled.copiedBuffer("all good", StandardCharsets.UTF_8);
+        try {
+            assertFalse(filter.mask(buf));
+            assertEquals("all good", buf.toString(StandardCharsets.UTF_8));
+        } finally {
+            buf.release();
+        }
+    }
+
+    @Test
+    void masksOnlyBetweenReaderAndWriterIndex() {
+        WordFilter filter = new WordFilter(List.of("bad"));
+        ByteBuf buf = Unpooled.copiedBuffer("bad bad", StandardCharsets.UTF_8);
+        try {
+            buf.readerIndex(4);
+            assertTrue(filter.mask(buf));
+            assertEquals("bad ***", buf.toString(0, buf.writerIndex(), StandardCharsets.UTF_8));
+        } finally {
+            buf.release();
+        }
+    }
+
+    @Test
+    void matchesNonAsciiBytesExactly() {
+        WordFilter filter = new WordFilter(List.of("\u043f\u043b\u043e\u0445\u043e"));
+
+        assertEquals("\u044d\u0442\u043e **********", mask(filter, "\u044d\u0442\u043e \u043f\u043b\u043e\u0445\u043e"));
+        assertEquals("\u044d\u0442\u043e \u041f\u041b\u041e\u0425\u041e", mask(filter, "\u044d\u0442\u043e \u041f\u041b\u041e\u0425\u041e"));
+    }
+
+    @Test
+    void reloadsTermsFromFile(@TempDir Path dir) throws Exception {
+        Path file = Files.writeString(dir.resolve("words.txt"), "# banned\nfoo\n\nbar\n");
+        WordFilter filter = new WordFilter(List.of("bad"));
+
+        filter.reload(file);
+
+        assertEquals(2, filter.size());
+        assertEquals("*** bad ***", mask(filter, "foo bad bar"));
+    }
+}
@@ -0,0 +1,38 @@
+package ru.onetwo33.netty.handlers;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class ByteBufInputHandlerTest {
+
+    @Test
+    void decodesAndReleasesTheBuffer() {
+        EmbeddedChannel channel = new EmbeddedChannel(new ByteBufInputHandler());
+        ByteBuf buf = Unpooled.directBuffer().writeBytes("ls -l\r\n".getBytes(StandardCharsets.UTF_8));
+
+        channel.writeInbound(buf);
+
+        assertEquals("ls -l\r\n", channel.readInbound());
+        assertEquals(0, buf.refCnt());
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    void decodesUtf8() {
+        EmbeddedChannel channel = new EmbeddedChannel(new ByteBufInputHandler());
+        ByteBuf buf = Unpooled.copiedBuffer("\u043f\u0440\u0438\u0432\u0435\u0442", StandardCharsets.UTF_8);
+
+        channel.writeInbound(buf);
+
+        assertEquals("\u043f\u0440\u0438\u0432\u0435\u0442", channel.readInbound());
+        assertEquals(0, buf.refCnt());
+        assertFalse(channel.finish());
+    }
+}
@@ -0,0 +1,55 @@
+package ru.onetwo33.netty.handlers;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OutputHandlerTest {
+
+    @Test
+    void encodesStrings() {
+        EmbeddedChannel channel = new EmbeddedChannel(new OutputHandler());
+
+        assertTrue(channel.writeOutbound("\u0444\u0430\u0439\u043b.txt\n"));
+
+        ByteBuf buf = channel.readOutbound();
+        try {
+            assertEquals("\u0444\u0430\u0439\u043b.txt\n", buf.toString(StandardCharsets.UTF_8));
+        } finally {
+            buf.release();
+        }
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    void passesBuffersThrough() {
+        EmbeddedChannel channel = new EmbeddedChannel(new OutputHandler());
+        ByteBuf buf = Unpooled.copiedBuffer("data", StandardCharsets.UTF_8);
+
+        assertTrue(channel.writeOutbound(buf));
+
+        ByteBuf out = channel.readOutbound();
+        assertSame(buf, out);
+        assertEquals(1, out.refCnt());
+        out.release();
+        assertFalse(channel.finish());
+    }
+
+    @Test
+    void releasesWhatIsLeftOnClose() {
+        EmbeddedChannel channel = new EmbeddedChannel(new OutputHandler());
+        channel.writeOutbound("one\n", "two\n");
+
+        assertTrue(channel.finishAndReleaseAll());
+        assertNull(channel.readOutbound());
+    }
+}
@@ -0,0 +1,49 @@
+package ru.onetwo33.server.cache;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class ReadCacheTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void coldFileDoesNotPushOutAHotOne() throws Exception {
+        ReadCache cache = new ReadCache(100, 100);
+        Path hot = Files.write(dir.resolve("hot"), new byte[60]);
+        Path cold = Files.write(dir.resolve("cold"), new byte[60]);
+        for (int i = 0; i < 3; i++) {
+            assertNotNull(cache.get(hot));
+        }
+
+        assertNull(cache.get(cold)); // rejected before it is read, served from disk
+        assertEquals(0, cache.getEvictions());
+        assertEquals(60, cache.getBytes());
+
+        long hits = cache.getHits();
+        assertNotNull(cache.get(hot));
+        assertEquals(hits + 1, cache.getHits());
+    }
+
+    @Test
+    void fileAskedForMoreOftenWinsTheSpace() throws Exception {
+        ReadCache cache = new ReadCache(100, 100);
+        Path old = Files.write(dir.resolve("old"), new byte[60]);
+        Path popular = Files.write(dir.resolve("popular"), new byte[60]);
+        assertNotNull(cache.get(old));
+
+        assertNull(cache.get(popular));
+        assertNotNull(cache.get(popular));
+
+        assertEquals(1, cache.getEvictions());
+        assertEquals(60, cache.getBytes());
+    }
+}
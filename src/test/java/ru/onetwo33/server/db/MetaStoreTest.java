@@ -0,0 +1,132 @@
+package ru.onetwo33.server.db;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MetaStoreTest {
+
+    @TempDir
+    Path dir;
+
+    private void fill() throws Exception {
+        MetaStore store = new MetaStore(dir);
+        store.putFile("docs", true, 0, 1, 1).join();
+        store.putFile("docs/a.txt", false, 10, 2, 3).join();
+        store.putFile("docs/b.txt", false, 20, 4, 5).join();
+        store.setChecksum("docs/a.txt", 10, 3, "abc").join();
+        store.deleteFile("docs/b.txt").join();
+        assertTrue(store.addUser("alice", "secret").join());
+        store.close();
+    }
+
+    private void assertFilled(MetaStore store) {
+        MetaStore.FileRecord a = store.get("docs/a.txt");
+        assertEquals(10, a.getSize());
+        assertEquals(3, a.getModified());
+        assertEquals("abc", a.getChecksum());
+        assertTrue(store.isDirectory("docs"));
+        assertNull(store.get("docs/b.txt"));
+        assertTrue(store.authenticate("alice", "secret"));
+        assertFalse(store.authenticate("alice", "wrong"));
+    }
+
+    @Test
+    void replaysTheLog() throws Exception {
+        fill();
+
+        MetaStore store = new MetaStore(dir);
+        try {
+            assertFilled(store);
+            assertEquals(6, store.lastLsn());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    void cutsOffATornTail() throws Exception {
+        fill();
+        Path log = dir.resolve("meta.log");
+        long intact = Files.size(log);
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(log, StandardOpenOption.APPEND))) {
+            out.writeInt(100); // a record that never finished
+            out.write(new byte[]{1, 2, 3});
+        }
+
+        MetaStore store = new MetaStore(dir);
+        try {
+            assertFilled(store);
+            assertEquals(intact, Files.size(log));
+            store.putFile("docs/c.txt", false, 30, 6, 7).join();
+        } finally {
+            store.close();
+        }
+
+        store = new MetaStore(dir);
+        try {
+            assertFilled(store);
+            assertEquals(30, store.get("docs/c.txt").getSize());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    void stopsAtACorruptLength() throws Exception {
+        fill();
+        Path log = dir.resolve("meta.log");
+        long intact = Files.size(log);
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(log, StandardOpenOption.APPEND))) {
+            out.writeInt(Integer.MAX_VALUE); // must not be allocated
+            out.write(new byte[64]);
+        }
+
+        MetaStore store = new MetaStore(dir);
+        try {
+            assertFilled(store);
+            assertEquals(intact, Files.size(log));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    void refusesASecondStoreOnTheSameDirectory() throws Exception {
+        MetaStore store = new MetaStore(dir);
+        try {
+            assertThrows(IOException.class, () -> new MetaStore(dir));
+        } finally {
+            store.close();
+        }
+        new MetaStore(dir).close(); // released on close
+    }
+
+    @Test
+    void stopsAtABadChecksum() throws Exception {
+        fill();
+        Path log = dir.resolve("meta.log");
+        byte[] bytes = Files.readAllBytes(log);
+        bytes[bytes.length - 1] ^= 1; // the last record is the user
+
+        Files.write(log, bytes);
+        MetaStore store = new MetaStore(dir);
+        try {
+            assertEquals(10, store.get("docs/a.txt").getSize());
+            assertFalse(store.hasUser("alice"));
+        } finally {
+            store.close();
+        }
+    }
+}
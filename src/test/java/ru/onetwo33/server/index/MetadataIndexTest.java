@@ -0,0 +1,54 @@
+package ru.onetwo33.server.index;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.onetwo33.server.db.MetaStore;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class MetadataIndexTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void restoreChecksTheRecordsAgainstTheDisk() throws Exception {
+        Path root = Files.createDirectories(dir.resolve("server"));
+        Path a = Files.createDirectory(root.resolve("a"));
+        Path changed = Files.writeString(a.resolve("x.txt"), "changed while the server was down");
+        Path same = Files.writeString(root.resolve("top.txt"), "unchanged");
+        Files.writeString(a.resolve("new.txt"), "new");
+        Files.writeString(root.resolve("fresh.txt"), "fresh");
+        long sameModified = Files.getLastModifiedTime(same).toMillis();
+
+        MetaStore store = new MetaStore(dir.resolve("meta"));
+        try {
+            store.putFile("a", true, 0, 1, Files.getLastModifiedTime(a).toMillis() - 1000);
+            store.putFile("a/x.txt", false, 3, 1, 2);
+            store.setChecksum("a/x.txt", 3, 2, "old");
+            store.putFile("a/gone.txt", false, 5, 1, 2);
+            store.putFile("top.txt", false, Files.size(same), 1, sameModified);
+            store.setChecksum("top.txt", Files.size(same), sameModified, "kept");
+
+            MetadataIndex index = new MetadataIndex(root, store);
+            try {
+                assertEquals(Files.size(changed), index.get(changed).getSize());
+                assertEquals("", store.get("a/x.txt").getChecksum());
+                assertNull(index.get(a.resolve("gone.txt")));
+                assertNull(store.get("a/gone.txt"));
+                assertNotNull(index.get(a.resolve("new.txt")));
+                assertNotNull(index.get(root.resolve("fresh.txt")));
+                assertEquals("kept", store.get("top.txt").getChecksum());
+            } finally {
+                index.close();
+            }
+        } finally {
+            store.close();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package ru.onetwo33.server.store;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.onetwo33.common.Checksums;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChunkStoreTest {
+
+    @TempDir
+    Path dir;
+
+    private static String id(byte[] data) {
+        return Checksums.toHex(Checksums.sha256().digest(data));
+    }
+
+    @Test
+    void pinnedChunkSurvivesRelease() throws Exception {
+        ChunkStore store = new ChunkStore(dir);
+        byte[] data = "chunk".getBytes(StandardCharsets.UTF_8);
+        String id = id(data);
+        store.putChunk(id, data, data.length);
+        store.putManifest("a", new Manifest(data.length, List.of(id)));
+        store.unpin(List.of(id));
+
+        // a second upload finds the chunk, then the only manifest holding it goes away
+        assertTrue(store.hasChunk(id));
+        store.deleteManifest("a");
+        assertTrue(Files.exists(store.chunkPath(id)));
+
+        store.putManifest("b", new Manifest(data.length, List.of(id)));
+        store.unpin(List.of(id));
+        assertTrue(Files.exists(store.chunkPath(id)));
+
+        store.deleteManifest("b");
+        assertFalse(Files.exists(store.chunkPath(id)));
+    }
+
+    @Test
+    void failedUploadLeavesNoChunk() throws Exception {
+        ChunkStore store = new ChunkStore(dir);
+        byte[] data = "orphan".getBytes(StandardCharsets.UTF_8);
+        String id = id(data);
+        store.putChunk(id, data, data.length);
+        store.unpin(List.of(id)); // no manifest came
+        assertFalse(Files.exists(store.chunkPath(id)));
+    }
+}